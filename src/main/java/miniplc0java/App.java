@@ -2,8 +2,13 @@ package miniplc0java;
 
 import miniplc0java.analyser.*;
 import miniplc0java.error.CompileError;
+import miniplc0java.error.Diagnostics;
+import miniplc0java.tokenizer.SourceInput;
 import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
 import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.util.Trace;
+import miniplc0java.vm.BodyEncoder;
 import miniplc0java.vm.OutPutBinary;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -13,7 +18,9 @@ import net.sourceforge.argparse4j.inf.Namespace;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class App {
     public static void main(String[] args) throws Exception {
@@ -26,17 +33,24 @@ public class App {
             return;
         }
 
+        Trace.setLevel(result.getString("trace"));
+
         var inputFileName = result.getString("input");
         var outputFileName = result.getString("asm");
-        System.out.println(inputFileName + " " + outputFileName);
+        if (Trace.enabled(Trace.Level.INFO))
+            Trace.log(Trace.Level.INFO, "input: " + inputFileName + ", output: " + outputFileName);
 
-        InputStream input;
+        SourceInput input;
+        boolean streaming = result.getBoolean("stream");
         if (inputFileName.equals("-")) {
-            input = System.in;
+            input = streaming ? SourceInput.streaming(System.in) : SourceInput.fromStream(System.in);
         } else {
             try {
-                input = new FileInputStream(inputFileName);
-            } catch (FileNotFoundException e) {
+                if (streaming)
+                    input = SourceInput.streaming(new BufferedInputStream(new FileInputStream(inputFileName)));
+                else
+                    input = SourceInput.fromFile(inputFileName);
+            } catch (FileNotFoundException | NoSuchFileException e) {
                 System.err.println("Cannot find input file.");
                 e.printStackTrace();
                 System.exit(2);
@@ -44,10 +58,10 @@ public class App {
             }
         }
 
-        FileOutputStream output;
+        OutputStream output;
         try {
             // output = new PrintStream(new FileOutputStream(outputFileName));
-            output = new FileOutputStream(outputFileName);
+            output = new BufferedOutputStream(new FileOutputStream(outputFileName));
         } catch (FileNotFoundException e) {
             System.err.println("Cannot open output file.");
             e.printStackTrace();
@@ -55,18 +69,59 @@ public class App {
             return;
         }
 
-        Scanner scanner;
-        scanner = new Scanner(input);
-        var iter = new StringIter(scanner);
+        var iter = new StringIter(input);
         var tokenizer = tokenize(iter);
 
-        var analyzer = new Analyser(tokenizer);
-        analyzer.analyse();
-        OutPutBinary answer = new OutPutBinary(analyzer.currentTable, analyzer.funcTable);
-        List<Byte> bytes = answer.generate();
-        System.out.println(bytes);
-        for (Byte b : bytes)
-            output.write(b);
+        TokenBuffer tokens;
+        boolean pipelined = result.getBoolean("pipeline");
+        if (streaming) {
+            // 不把整个文件的 token 存下来，语法分析需要时才识别
+            tokens = TokenBuffer.onDemand(tokenizer);
+        } else if (pipelined) {
+            tokens = TokenBuffer.lexPipelined(tokenizer);
+        } else {
+            if (result.getBoolean("parallel"))
+                tokens = TokenBuffer.lexParallel(tokenizer, ForkJoinPool.commonPool());
+            else
+                tokens = TokenBuffer.lex(tokenizer);
+            if (Trace.enabled(Trace.Level.INFO))
+                Trace.log(Trace.Level.INFO, tokens.size() + " tokens");
+        }
+
+        var diagnostics = new Diagnostics(tokens::posOf, result.getBoolean("recover"));
+        var analyzer = new Analyser(tokenizer, tokens, diagnostics);
+        analyzer.setPeephole(result.getBoolean("peephole"));
+        analyzer.setRotateLoops(result.getBoolean("rotate_loops"));
+        analyzer.setDirectCalls(result.getBoolean("direct_calls"));
+        // 流式编译逐个全局项生成，编码完的函数体不再保留指令
+        var encoder = new BodyEncoder(streaming);
+        try {
+            if (pipelined || streaming)
+                analyzer.analysePipelined(encoder::submit);
+            else
+                analyzer.analyse();
+        } catch (CompileError e) {
+            if (!diagnostics.isRecovering())
+                throw e;
+            // 一次报告所有错误
+            for (CompileError error : diagnostics.getErrors())
+                System.err.println(error);
+            System.exit(1);
+            return;
+        }
+        OutPutBinary answer = new OutPutBinary(analyzer.currentTable, analyzer.funcTable, encoder);
+        if (streaming) {
+            answer.writeTo(output);
+        } else {
+            List<Byte> bytes = answer.generate();
+            if (Trace.enabled(Trace.Level.INFO))
+                Trace.log(Trace.Level.INFO, bytes.size() + " bytes written");
+            if (Trace.enabled(Trace.Level.TRACE))
+                Trace.log(Trace.Level.TRACE, bytes.toString());
+            for (Byte b : bytes)
+                output.write(b);
+        }
+        output.close();
     }
 
     private static ArgumentParser buildArgparse() {
@@ -74,6 +129,25 @@ public class App {
         var parser = builder.build();
         parser.addArgument("-t", "--tokenize").help("Tokenize the input").action(Arguments.storeTrue());
         parser.addArgument("-l", "--analyse").help("Analyze the input").action(Arguments.storeTrue());
+        parser.addArgument("-s", "--stream").help("Read the input in fixed-size chunks, lex tokens only as the parser needs them "
+                + "and drop each item's syntax tree and instructions once it is encoded; --parallel is ignored. "
+                + "The symbol tables and the encoded functions are still kept until the output is written, "
+                + "and --recover analyses the whole file at once")
+                .action(Arguments.storeTrue());
+        parser.addArgument("-p", "--parallel").help("Tokenize large inputs on multiple threads")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--pipeline").help("Lex, analyse and encode on separate threads at the same time")
+                .action(Arguments.storeTrue());
+        parser.addArgument("-r", "--recover").help("Keep analysing after an error and report all errors")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--peephole").help("Remove redundant instructions and branches from each function")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--rotate-loops").help("Test the condition of while loops at the bottom")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--direct-calls").help("Call functions by their index instead of by name")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--trace").help("Print diagnostics to stderr: off, info, debug or trace")
+                .choices("off", "info", "debug", "trace").setDefault("off").action(Arguments.store());
         parser.addArgument("-o", "--output").help("Set the output file").required(true).dest("asm")
                 .action(Arguments.store());
         parser.addArgument("file").required(true).dest("input").action(Arguments.store()).help("Input file");
@@ -1,1059 +1,202 @@
 package miniplc0java.analyser;
 
-import miniplc0java.error.AnalyzeError;
+import miniplc0java.ast.Node;
+import miniplc0java.ast.Program;
 import miniplc0java.error.CompileError;
-import miniplc0java.error.ErrorCode;
-import miniplc0java.error.ExpectedTokenError;
-import miniplc0java.error.TokenizeError;
-import miniplc0java.instruction.Instruction;
-import miniplc0java.instruction.Operation;
-import miniplc0java.tokenizer.Token;
-import miniplc0java.tokenizer.TokenType;
+import miniplc0java.error.Diagnostics;
+import miniplc0java.tokenizer.TokenBuffer;
 import miniplc0java.tokenizer.Tokenizer;
-import miniplc0java.util.Pos;
+import miniplc0java.util.Trace;
 
 import java.util.*;
-
+import java.util.function.Consumer;
+
+/**
+ * 编译一个文件
+ * <p>
+ * 依次进行语法分析（{@link Parser}）、语义分析（{@link SemanticAnalyser}）和代码生成（{@link CodeGenerator}），
+ * 三遍之间通过语法树传递，每一遍可以单独计时。
+ * <p>
+ * 流水线模式下每分析完一个全局项就接着做语义分析和代码生成，和另一个线程里的词法分析同时进行。
+ */
 public class Analyser {
     Tokenizer tokenizer;
 
     /**
-     * 当前偷看的 token
-     */
-    Token peekedToken = null;
-
-    /**
-     * 当前的符号表
-     */
-    public SymbolTable currentTable = new SymbolTable();
-
-    /**
-     * 全局函数表
+     * 整个文件的 token
      */
-    public LinkedHashMap<String, Function> funcTable = new LinkedHashMap<>();
+    TokenBuffer tokens;
 
     /**
-     * 当前分析的函数
+     * 语法树，语法分析之后才有
      */
-    Function curFunc;
+    Program program;
 
-    /**
-     * 是否在while中
-     */
-    boolean isWhileDomain = false;
+    SemanticAnalyser semanticAnalyser;
 
     /**
-     * while block
+     * 错误的收集
      */
-    Stack<WhileBlock> whileBlocks = new Stack<>();
-
-    public Analyser(Tokenizer tokenizer) throws CompileError {
-        init_start();
-        this.tokenizer = tokenizer;
-    }
-
-    public LinkedHashMap<String, Function> analyse() throws CompileError {
-        analyseProgram();
-        int order = currentTable.get("main").order;
-        addInstruction(Operation.callname, order);
-        return funcTable;
-    }
-
-    public void init_start() throws CompileError {
-        addFunc("_start");
-    }
+    Diagnostics diagnostics;
 
     /**
-     * 添加一个符号
-     *
-     * @param name          名字
-     * @param isInitialized 是否已赋值
-     * @param isConstant    是否是常量
-     * @param curPos        当前 token 的位置（报错用）
-     * @throws CompileError 如果重复定义了则抛异常
+     * 全局符号表
      */
-    private SymbolEntry addSymbolVariable(String name, boolean isConstant, boolean isInitialized, TokenType type, Pos curPos) throws CompileError {
-        // 区分全局和函数内
-        // 增加局部变量数
-        curFunc.incLoc_slots();
-
-        if (currentTable.fatherTable == null)
-            return currentTable.putVariable(name, new SymbolEntry(isConstant, true, type, SymbolType.ALL));
-        else
-            return currentTable.putVariable(name, new SymbolEntry(isConstant, isInitialized, type, SymbolType.VARIABLE));
-    }
-
-    private void addSymbolParam(String name, boolean isConstant, boolean isInitialized, TokenType type, Pos curPos) throws CompileError {
-        // 增加参数个数
-        curFunc.incParam_slots();
-
-        currentTable.putParam(name, new SymbolEntry(isConstant, isInitialized, type, SymbolType.PARAM));
-    }
-
-    private SymbolEntry addGlobalString(String value) throws CompileError {
-        // 增加参数个数
-        curFunc.incLoc_slots();
-
-        return currentTable.putGlobalString(new SymbolEntry(false, false, TokenType.STRING_LITEREAL, SymbolType.GLOBAL_STRING, value));
-    }
+    public SymbolTable currentTable;
 
     /**
-     * 添加一个函数
-     *
-     * @param name 名字
-     * @throws CompileError 如果重复定义了则抛异常
-     */
-    private void addFunc(String name) throws CompileError {
-        if (funcTable.get(name) != null)
-            throwError(ErrorCode.DuplicateFunction);
-        else {
-            var func = new Function(name);
-            // 将函数名加入变量表
-            currentTable.putGlobalFunc(name, new SymbolEntry(false, false, TokenType.FUNCTION_KW, SymbolType.Function, name));
-            // 设置当前分析的函数
-            curFunc = func;
-            // 设置其在全局变量表中的位置
-            curFunc.setOrder(currentTable.get(name).order);
-            funcTable.put(name, func);
-        }
-    }
-
-    /**
-     * 查看下一个 Token
-     *
-     * @return
-     * @throws TokenizeError
+     * 全局函数表
      */
-    private Token peek() throws TokenizeError {
-        if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
-        }
-        return peekedToken;
-    }
+    public LinkedHashMap<String, Function> funcTable;
 
     /**
-     * 获取下一个 Token
-     *
-     * @return
-     * @throws TokenizeError
+     * 是否做窥孔优化
      */
-    private Token next() throws TokenizeError {
-        if (peekedToken != null) {
-            var token = peekedToken;
-//             System.out.println("下一个字符" + peekedToken);
-            peekedToken = null;
-            return token;
-        } else {
-            Token xxx = tokenizer.nextToken();
-//             System.out.println("下一个字符" + xxx);
-            return xxx;
-        }
-    }
+    boolean peephole = false;
 
     /**
-     * 如果下一个 token 的类型是 tt，则返回 true
-     *
-     * @param tt
-     * @return
-     * @throws TokenizeError
+     * 是否把 while 生成为条件在末尾的循环
      */
-    private boolean check(TokenType tt) throws TokenizeError {
-        var token = peek();
-        return token.getTokenType() == tt;
-    }
+    boolean rotateLoops = false;
 
     /**
-     * 如果下一个 token 的类型是 tt，则前进一个 token 并返回这个 token
-     *
-     * @param tt 类型
-     * @return 如果匹配则返回这个 token，否则返回 null
-     * @throws TokenizeError
+     * 是否用 call 按函数的位置调用
      */
-    private Token nextIf(TokenType tt) throws TokenizeError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
-            return next();
-        } else {
-            return null;
-        }
-    }
+    boolean directCalls = false;
 
     /**
-     * 如果下一个 token 的类型是 tt，则前进一个 token 并返回，否则抛出异常
-     *
-     * @param tt 类型
-     * @return 这个 token
-     * @throws CompileError 如果类型不匹配
+     * 语法分析需要时才识别 token（{@link TokenBuffer#onDemand(Tokenizer)}）
      */
-    private Token expect(TokenType tt) throws CompileError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
-            return next();
-        } else {
-            System.out.println(token);
-            throw new ExpectedTokenError(tt, token);
-        }
+    public Analyser(Tokenizer tokenizer) throws CompileError {
+        this(tokenizer, TokenBuffer.onDemand(tokenizer));
     }
 
     /**
-     * 检查函数返回值TY的，如果是则前进一位
-     *
-     * @return 这个 token
-     * @throws CompileError 如果类型不匹配
+     * @param tokens 已经识别好的 token，例如并行识别的结果
      */
-    private TokenType expectTY() throws CompileError {
-        var token = peek();
-        if (check(TokenType.INT_KW) || check(TokenType.VOID_KW) || check(TokenType.DOUBLE_KW)) {
-            return next().getTokenType();
-        } else {
-            throw new ExpectedTokenError(TokenType.TY_KW, token);
-        }
+    public Analyser(Tokenizer tokenizer, TokenBuffer tokens) throws CompileError {
+        this(tokenizer, tokens, new Diagnostics(tokens::posOf, false));
     }
 
     /**
-     * 检查变量定义TY的，如果是则前进一位
-     *
-     * @return 这个 token
-     * @throws CompileError 如果类型不匹配
+     * @param diagnostics 错误的收集，恢复模式下分析完才抛出第一个错误
      */
-    private TokenType expectParam_TY() throws CompileError {
-        var token = peek();
-        if (check(TokenType.INT_KW) || check(TokenType.DOUBLE_KW)) {
-            return next().getTokenType();
-        } else {
-            throw new ExpectedTokenError(TokenType.TY_KW, token);
-        }
+    public Analyser(Tokenizer tokenizer, TokenBuffer tokens, Diagnostics diagnostics) throws CompileError {
+        this.tokenizer = tokenizer;
+        this.tokens = tokens;
+        this.diagnostics = diagnostics;
+        this.semanticAnalyser = new SemanticAnalyser(tokenizer.getInterner(), diagnostics);
+        this.currentTable = semanticAnalyser.currentTable;
+        this.funcTable = semanticAnalyser.funcTable;
     }
 
     /**
-     * 进入一个新的域
-     *
-     * @param
+     * @param peephole 函数生成完之后、交给编码之前是否做窥孔优化（{@link Peephole}）
      */
-    private void newDomain() {
-        currentTable = new SymbolTable(currentTable);
+    public void setPeephole(boolean peephole) {
+        this.peephole = peephole;
     }
 
     /**
-     * 退出域进入原本域
-     *
-     * @param
+     * @param rotateLoops 是否把 while 生成为条件在末尾的循环（{@link CodeGenerator#setRotateLoops(boolean)}）
      */
-    private void exitDomain() {
-        currentTable = currentTable.fatherTable;
+    public void setRotateLoops(boolean rotateLoops) {
+        this.rotateLoops = rotateLoops;
     }
 
     /**
-     * 添加指令
-     *
-     * @param opt
-     * @param x
+     * @param directCalls 是否用 call 按函数的位置调用（{@link CodeGenerator#setDirectCalls(boolean)}）
      */
-    public Instruction addInstruction(Operation opt, Integer x) {
-        Instruction instruction = new Instruction(opt, x);
-        curFunc.body.add(instruction);
-        // 增加指令数
-        curFunc.incBody_count();
-        return instruction;
+    public void setDirectCalls(boolean directCalls) {
+        this.directCalls = directCalls;
     }
 
-    public void addInstruction(Operation opt) {
-        this.curFunc.body.add(new Instruction(opt));
-    }
+    public LinkedHashMap<String, Function> analyse() throws CompileError {
+        long time = System.nanoTime();
+        program = new Parser(tokens, diagnostics).parseProgram();
+        time = logPhase("parse", time);
 
-    public void addInstruction(Operation opt, Long x) {
-        this.curFunc.body.add(new Instruction(opt, x));
-    }
+        semanticAnalyser.analyse(program);
+        time = logPhase("semantic analysis", time);
 
-    public void addInstruction(Operation opt, Double x) {
-        this.curFunc.body.add(new Instruction(opt, x));
-    }
+        // 有错误时不生成代码，所有错误都在 diagnostics 里
+        if (diagnostics.hasErrors())
+            throw diagnostics.getErrors().get(0);
 
-    /**
-     * 移除指令
-     *
-     * @param
-     */
-    public void popInstruction() {
-        this.curFunc.body.remove(this.curFunc.body.size() - 1);
+        newGenerator(function -> {
+        }).generate(program);
+        logPhase("code generation", time);
+        return funcTable;
     }
 
     /**
-     * 获取当前偏移
-     *
-     * @param
-     */
-    public int getInstructionOffset() {
-        return this.curFunc.body.size();
-    }
-
-
-    private void analyseProgram() throws CompileError {
-        // program -> item*
-        while (check(TokenType.LET_KW)
-                || check(TokenType.CONST_KW)
-                || check(TokenType.FN_KW))
-            analyseItem();
-    }
-
-    private void analyseItem() throws CompileError {
-        // item -> function | decl_stmt
-        if (check(TokenType.LET_KW) || check(TokenType.CONST_KW))
-            analyseDecl_Stmt();
-        else if (check(TokenType.FN_KW))
-            analyseFunction();
-    }
-
-    private void analyseFunction() throws CompileError {
-        // function -> 'fn' IDENT '(' function_param_list? ')' '->' ty block_stmt
-        expect(TokenType.FN_KW);
-
-        // 加入函数表
-        var nameToken = expect(TokenType.IDENT);
-        String name = nameToken.getValueString();
-        addFunc(name);
-
-        // 进入一个新的域
-        newDomain();
-
-        // (
-        expect(TokenType.L_PAREN);
-
-        // function_param_list
-        analyseFunctionParamList();
-
-        // )->
-        expect(TokenType.R_PAREN);
-        expect(TokenType.ARROW);
-
-        // 设置类型
-        curFunc.setRet_slots(expectTY());
-
-        // block_stmt
-        analyseBlock_Stmt();
-
-        // 退出域
-        exitDomain();
-
-        // 重置初始
-        if (this.curFunc.body.size() == 0 || this.curFunc.body.get(this.curFunc.body.size() - 1).getOpt() != Operation.ret)
-            addInstruction(Operation.ret);
-        curFunc = funcTable.get("_start");
-    }
-
-    private void analyseFunctionParamList() throws CompileError {
-        // function_param_list -> function_param (',' function_param)*
-
-        if (check(TokenType.IDENT) || check(TokenType.CONST_KW))
-            analyseFunctionParam();
-        else
-            return;
-
-        // 检查多个参数
-        while (nextIf(TokenType.COMMA) != null)
-            analyseFunctionParam();
-    }
-
-    private void analyseFunctionParam() throws CompileError {
-        // function_param -> 'const'? IDENT ':' ty
-
-        boolean isConstant = false;
-        if (nextIf(TokenType.CONST_KW) != null) {
-            // 常量
-            isConstant = true;
-        }
-        // 分析变量名
-        var nameToken = expect(TokenType.IDENT);
-        String name = nameToken.getValueString();
-
-        // :冒号
-        expect(TokenType.COLON);
-
-        // 类型
-        var typeToken = expectParam_TY();
-
-        // 加入符号表
-        addSymbolParam(name, isConstant, true, typeToken, nameToken.getStartPos());
-    }
-
-    private void analyseStmt() throws CompileError {
-        // # 语句
-        // stmt -> expr_stmt
-        //       | decl_stmt
-        //       | if_stmt
-        //       | while_stmt
-        //       | break_stmt
-        //       | continue_stmt
-        //       | return_stmt
-        //       | block_stmt
-        //       | empty_stmt
-
-        switch (peekedToken.getTokenType()) {
-            case L_BRACE:
-                // block_stmt
-                newDomain();
-                analyseBlock_Stmt();
-                exitDomain();
-                break;
-            case SEMICOLON:
-                // empty_stmt
-                analyseEmpty_Stmt();
-                break;
-            case RETURN_KW:
-                // return_stmt
-                analyseReturn_Stmt();
-                break;
-            case CONTINUE_KW:
-                // continue_stmt
-                analyseContinue_Stmt();
-                break;
-            case BREAK_KW:
-                // break_stmt
-                analyseBreak_Stmt();
-                break;
-            case WHILE_KW:
-                // while_stmt
-                analyseWhile_Stmt();
-                break;
-            case IF_KW:
-                // if_stmt
-                analyseIf_Stmt();
-                break;
-            case LET_KW:
-            case CONST_KW:
-                // decl_stmt
-                analyseDecl_Stmt();
-                break;
-            default:
-                // expr_stmt
-                analyseExpr_Stmt();
-        }
-    }
-
-    private void analyseBlock_Stmt() throws CompileError {
-        // block_stmt -> '{' stmt* '}'
-        expect(TokenType.L_BRACE);
-
-        // 分析语句
-        // todo:这个循环似乎有错？
-        while (!check(TokenType.R_BRACE))
-            analyseStmt();
-
-        expect(TokenType.R_BRACE);
-    }
-
-
-    private void analyseExpr_Stmt() throws CompileError {
-        // expr_stmt -> expr ';'
-        analyseExpr();
-    }
-
-    private void analyseDecl_Stmt() throws CompileError {
-        // decl_stmt -> let_decl_stmt | const_decl_stmt
-        // { let, const }
-        if (check(TokenType.LET_KW))
-            analyseLet_Decl_Stmt();
-        else if (check(TokenType.CONST_KW))
-            analyseConst_Decl_Stmt();
-
-    }
-
-    private void analyseLet_Decl_Stmt() throws CompileError {
-        // let_decl_stmt -> 'let' IDENT ':' ty ('=' expr)? ';'
-
-        expect(TokenType.LET_KW);
-
-        // 分析变量名
-        var nameToken = expect(TokenType.IDENT);
-        String name = nameToken.getValueString();
-
-        // :
-        expect(TokenType.COLON);
-
-        // 类型
-        var typeToken = expectParam_TY();
-
-        // 加入符号表
-        SymbolEntry entry = addSymbolVariable(name, false, false, typeToken, nameToken.getStartPos());
-
-
-        // ('=' expr)?
-        if (nextIf(TokenType.ASSIGN) != null) {
-            // 加载地址
-            if (entry.symbolType == SymbolType.ALL)
-                addInstruction(Operation.globa, entry.order);
-            else if (entry.symbolType == SymbolType.VARIABLE)
-                addInstruction(Operation.loca, entry.order);
-
-            // 分析表达式
-            if (analyseExpr().type == typeToken) {
-                // 设置变量初始化
-                entry.setInitialized(true);
-                // 存储变量
-                addInstruction(Operation.store64);
-            } else
-                throwError(ErrorCode.InvalidAssignment);
-        }
-
-        // ;
-        expect(TokenType.SEMICOLON);
-    }
-
-    private void analyseConst_Decl_Stmt() throws CompileError {
-        // const_decl_stmt -> 'const' IDENT ':' ty '=' expr ';'
-
-        expect(TokenType.CONST_KW);
-
-        // 分析变量名
-        var nameToken = expect(TokenType.IDENT);
-        String name = nameToken.getValueString();
-
-        // :
-        expect(TokenType.COLON);
-
-        // 类型
-        var typeToken = expectParam_TY();
-
-        // 加入符号表
-        SymbolEntry entry = addSymbolVariable(name, true, true, typeToken, nameToken.getStartPos());
-
-        // 加载地址
-        if (entry.symbolType == SymbolType.ALL)
-            addInstruction(Operation.globa, entry.order);
-        else if (entry.symbolType == SymbolType.PARAM)
-            addInstruction(Operation.loca, entry.order);
-
-        // '=' expr
-        expect(TokenType.ASSIGN);
-
-        // 分析表达式
-        if (analyseExpr().type != typeToken)
-            throwError(ErrorCode.InvalidAssignment);
-
-        // 存入变量
-        addInstruction(Operation.store64);
-
-        // ;
-        expect(TokenType.SEMICOLON);
-    }
-
-    private void analyseIf_Stmt() throws CompileError {
-        // if_stmt -> 'if' expr block_stmt ('else' 'if' expr block_stmt)* ('else' block_stmt)?
-        // { if }
-        expect(TokenType.IF_KW);
-
-        // 分析表达式，将值压栈
-        var expr = analyseExpr();
-
-        // 预备的跳转指令，当条件为false则跳过block
-        // x将在分析完block时计算
-        Instruction br1 = addInstruction(Operation.brfalse, 0);
-        int start = getInstructionOffset();
-
-        // 进入前进入新的域
-        newDomain();
-        // 块分析
-        analyseBlock_Stmt();
-        // 退出域
-        exitDomain();
-
-        // 无跳转其他块
-        Instruction br2 = addInstruction(Operation.br, 0);
-        int middle = getInstructionOffset();
-        // 设置跳转至该位置
-        br1.setX(middle - start);
-        if (nextIf(TokenType.ELSE_KW) != null) {
-            // ('else' 'if' expr block_stmt)*
-            if (check(TokenType.IF_KW))
-                analyseIf_Stmt();
-
-                // ('else' block_stmt)?
-            else if (check(TokenType.L_BRACE)) {
-                // 进入前进入新的域
-                newDomain();
-                // 块分析
-                analyseBlock_Stmt();
-                // 退出域
-                exitDomain();
-            }
-        }
-
-        // 出来的怎么办？直接跳过所有
-        int end = getInstructionOffset();
-        br2.setX(end - middle);
-
-    }
-
-    private void analyseWhile_Stmt() throws CompileError {
-        // while_stmt -> 'while' expr block_stmt
-        //  { while }
-        expect(TokenType.WHILE_KW);
-
-        isWhileDomain = true;
-
-        // 设置开始地址
-        int start = getInstructionOffset();
-
-        // 代码生成中的 while 表达式，push状态
-        analyseExpr();
-        Instruction br1 = addInstruction(Operation.brfalse, 0);
-        int middle = getInstructionOffset();
-
-        whileBlocks.push(new WhileBlock(start, middle));
-
-        // 进入前进入新的域
-        newDomain();
-        // 块分析
-        analyseBlock_Stmt();
-        // 退出域
-        exitDomain();
-
-        // 跳回原地址
-        Instruction br2 = addInstruction(Operation.br, 0);
-        int end = getInstructionOffset();
-
-        // 跳过while块
-        br1.setX(end - middle);
-
-        // 循环while
-        br2.setX(start - end);
-
-        whileBlocks.pop();
-        isWhileDomain = false;
-    }
-
-    private void analyseBreak_Stmt() throws CompileError {
-        // break_stmt -> 'break' ';'
-        // { break }
-        // todo:【加分】break的代码生成
-        if (!isWhileDomain)
-            throwError(ErrorCode.NotWhileDomain);
-        long l = 0;
-        addInstruction(Operation.push, l);
-        Instruction br = addInstruction(Operation.br, 0);
-        br.setX(whileBlocks.peek().getEndOffset(getInstructionOffset()));
-        expect(TokenType.BREAK_KW);
-        expect(TokenType.SEMICOLON);
-    }
-
-    private void analyseContinue_Stmt() throws CompileError {
-        // continue_stmt -> 'continue' ';'
-        // { continue }
-        // todo:【加分】continue的代码生成
-        if (!isWhileDomain)
-            throwError(ErrorCode.NotWhileDomain);
-        Instruction br = addInstruction(Operation.br, 0);
-        br.setX(whileBlocks.peek().getStartOffset(getInstructionOffset()));
-
-        expect(TokenType.CONTINUE_KW);
-        expect(TokenType.SEMICOLON);
-    }
-
-    private void analyseReturn_Stmt() throws CompileError {
-        // return_stmt -> 'return' expr? ';'
-        // { return }
-        expect(TokenType.RETURN_KW);
-
-        if (!check(TokenType.SEMICOLON)) {
-            // 加载返回值地址
-            addInstruction(Operation.arga, 0);
-
-            var expr = analyseExpr();
-            // 检查返回值类型
-            if (expr.type != curFunc.ret_type)
-                throwError(ErrorCode.OtherReturnType);
-
-            // 存储函数返回值
-            addInstruction(Operation.store64);
-        }
-        // 检查返回值类型
-        else if (curFunc.ret_type != TokenType.VOID_KW)
-            throwError(ErrorCode.OtherReturnType);
-
-        // ;
-        expect(TokenType.SEMICOLON);
-
-        addInstruction(Operation.ret);
-    }
-
-    private void analyseEmpty_Stmt() throws CompileError {
-        // empty_stmt -> ';'
-        // { ; }
-        expect(TokenType.SEMICOLON);
-    }
-
-    private SymbolEntry analyseExpr() throws CompileError {
-        // 表达式
-        // expr -> exprA
-        return analyseExprA();
-    }
-
-    private SymbolEntry analyseExprA() throws CompileError {
-        // A -> B ( '=' A )*
-        var exprA = analyseExprB();
-        // 避免连等
-        if (nextIf(TokenType.ASSIGN) != null) {
-            // todo:删除指令
-            popInstruction();
-
-            if (exprA.isConstant)
-                throwError(ErrorCode.ConstantNeedValue);
-            checkIfNotTemp(exprA);
-            checkIdentInitialized(analyseExprA());
-
-            // todo:没看懂
-            addInstruction(Operation.store64);
-
-            // 赋值变量
-            exprA.setInitialized(true);
-            return new SymbolEntry(TokenType.VOID_KW);
-        }
-
-        return exprA;
-    }
-
-    private SymbolEntry analyseExprB() throws CompileError {
-        // B -> C ( ( '<'|'>'|'<='|'>='|'=='|'!=' ) C )*
-        var exprB = analyseExprC();
-        if (check(TokenType.LT) || check(TokenType.GT) || check(TokenType.LE) || check(TokenType.GE) || check(TokenType.EQ) || check(TokenType.NEQ)) {
-            var token = next();
-
-            // 检查类型并获取下一个表达式内容
-            checkIdentType(analyseExprC(), exprB);
-
-            // 设置比较函数
-            if (exprB.type == TokenType.INT_KW)
-                addInstruction(Operation.cmpi);
-            else if (exprB.type == TokenType.DOUBLE_KW)
-                addInstruction(Operation.cmpf);
-
-            switch (token.getTokenType()) {
-                case LT:
-                    addInstruction(Operation.setlt);
-                    break;
-                case GT:
-                    addInstruction(Operation.setgt);
-                    break;
-                case LE:
-                    // 先大于再取反
-                    addInstruction(Operation.setgt);
-                    addInstruction(Operation.not);
-                    break;
-                case GE:
-                    // 先小于再取反
-                    addInstruction(Operation.setlt);
-                    addInstruction(Operation.not);
-                    break;
-                case EQ:
-                    addInstruction(Operation.not);
-                    break;
-                case NEQ:
-                    break;
-                default:
-                    // 这个语句应该不会被执行到
-                    throw new ExpectedTokenError(TokenType.LT, peekedToken);
-            }
-            return new SymbolEntry(TokenType.BOOLEAN_KW);
-        }
-        return exprB;
-    }
-
-    private SymbolEntry analyseExprC() throws CompileError {
-        // C -> D ( {+|-} D )*
-        var exprC = analyseExprD();
-        while (check(TokenType.PLUS) || check(TokenType.MINUS)) {
-            var token = next();
-
-            // 检查类型和初始化,并返回相应type的临时变量
-            checkIdentType(analyseExprD(), exprC);
-
-            switch (token.getTokenType()) {
-                case PLUS:
-                    if (exprC.type == TokenType.INT_KW)
-                        addInstruction(Operation.addi);
-                    else
-                        addInstruction(Operation.addf);
-                    break;
-                case MINUS:
-                    if (exprC.type == TokenType.INT_KW)
-                        addInstruction(Operation.subi);
-                    else
-                        addInstruction(Operation.subf);
-                    break;
-                default:
-                    throw new ExpectedTokenError(TokenType.PLUS, token);
-            }
-            // 返回
-            exprC = new SymbolEntry(true, exprC.type);
-        }
-        return exprC;
-    }
-
-    private SymbolEntry analyseExprD() throws CompileError {
-        // D -> E ( {*|/} E )*
-        var exprD = analyseExprE();
-        while (check(TokenType.MUL) || check(TokenType.DIV)) {
-
-            var token = next();
-
-            // 检查类型和初始化,并返回相应type的临时变量
-            checkIdentType(analyseExprE(), exprD);
-
-            switch (token.getTokenType()) {
-                case MUL:
-                    if (exprD.type == TokenType.INT_KW)
-                        addInstruction(Operation.muli);
-                    else
-                        addInstruction(Operation.mulf);
-                    break;
-                case DIV:
-                    if (exprD.type == TokenType.INT_KW)
-                        addInstruction(Operation.divi);
-                    else
-                        addInstruction(Operation.divf);
-                    break;
-                default:
-                    throw new ExpectedTokenError(TokenType.MUL, token);
-            }
-            exprD = new SymbolEntry(true, exprD.type);
-        }
-        return exprD;
-    }
-
-    private SymbolEntry analyseExprE() throws CompileError {
-        // E -> F [ 'as' type ]
-        var exprE = analyseExprF();
-        while (nextIf(TokenType.AS_KW) != null) {
-            var typeToken = expectParam_TY();
-
-            if (exprE.isInitialized && exprE.type == TokenType.INT_KW && typeToken == TokenType.DOUBLE_KW)
-                addInstruction(Operation.itof);
-            else if (exprE.isInitialized && exprE.type == TokenType.DOUBLE_KW && typeToken == TokenType.INT_KW)
-                addInstruction(Operation.ftoi);
-            else
-                throwError(ErrorCode.InvalidAs);
-            exprE = new SymbolEntry(true, typeToken);
-        }
-        return exprE;
-    }
-
-    private SymbolEntry analyseExprF() throws CompileError {
-        // F -> [ '-' ] G
-        boolean isNegative = false;
-        if (nextIf(TokenType.MINUS) != null) {
-            // 负号分析
-            isNegative = true;
-        }
-        SymbolEntry exprF;
-        if (isNegative) {
-            exprF = analyseExprA();
-            if (!exprF.isInitialized)
-                throwError(ErrorCode.NotInitialized);
-            else if (exprF.type == TokenType.INT_KW)
-                addInstruction(Operation.negi);
-            else if (exprF.type == TokenType.DOUBLE_KW)
-                addInstruction(Operation.negf);
-        } else
-            exprF = analyseExprG();
-        return exprF;
-    }
-
-    private SymbolEntry analyseExprG() throws CompileError {
-        // G -> '(' A ')' | H
-        if (nextIf(TokenType.L_PAREN) != null) {
-            var expr = analyseExprA();
-            expect(TokenType.R_PAREN);
-            return expr;
-        }
-        return analyseExprH();
-    }
-
-    private SymbolEntry analyseExprH() throws CompileError {
-        // H -> I | Ident [ '(' A (',' A)* ')' ]
-        if (check(TokenType.IDENT)) {
-            var nameToken = expect(TokenType.IDENT);
-            String name = nameToken.getValueString();
-            // 是否是函数
-            if (nextIf(TokenType.L_PAREN) != null) {
-                // 获取函数
-                var func = funcTable.get(name);
-                if (func == null && !isStdFunc(name))
-                    throwError(ErrorCode.FuncNotExist);
-                else if (isStdFunc(name)) {
-                    if (nextIf(TokenType.R_PAREN) == null) {
-                        // 分析传参
-                        var expr = analyseExprA();
-                        while (nextIf(TokenType.COMMA) != null) {
-                            expr = analyseExprA();
-                        }
-
-                        expect(TokenType.R_PAREN);
-                    }
-                    return analyseStdFunc(name);
-                } else {
-                    // 分配空间
-                    if (func.ret_type != TokenType.VOID_KW)
-                        addInstruction(Operation.stackalloc, 1);
-
-                    // 当前调用函数
-
-                    if (nextIf(TokenType.R_PAREN) == null) {
-                        // 分析传参
-                        var expr = analyseExprA();
-                        while (nextIf(TokenType.COMMA) != null) {
-                            expr = analyseExprA();
-                        }
-                        expect(TokenType.R_PAREN);
-                    }
-                    addInstruction(Operation.callname, this.funcTable.get(name).order);
-
-                    // 函数返回
-                    if (func.ret_type == TokenType.VOID_KW)
-                        return new SymbolEntry(TokenType.VOID_KW);
-                    else
-                        return new SymbolEntry(true, func.ret_type);
-                }
-            } else {
-                // 获取Ident
-                SymbolEntry entry = currentTable.get(name);
-                if (entry == null)
-                    throwError(ErrorCode.ParamNotExist);
-                else if (entry.symbolType == SymbolType.ALL)
-                    addInstruction(Operation.globa, entry.order);
-                else if (entry.symbolType == SymbolType.PARAM) {
-                    if (curFunc != null && curFunc.ret_slots == 0) {
-                        addInstruction(Operation.arga, entry.order - 1);
-                    } else
-                        addInstruction(Operation.arga, entry.order);
-                } else if (entry.symbolType == SymbolType.VARIABLE)
-                    addInstruction(Operation.loca, entry.order);
-                System.out.println("?????");
-                addInstruction(Operation.load64);
-                return entry;
+     * 流水线模式：逐个全局项分析、检查和生成，生成完的函数马上交给 onFunction
+     * <p>
+     * 报错和 {@link #analyse()} 相同：有语法错误时先报语法错误，所以遇到语义错误之后只做语法分析。
+     * 恢复模式要先报告所有语法错误，仍然逐遍进行。
+     * <p>
+     * 生成完的全局项不留在 {@link Program#items} 里，语法树不随文件变大。
+     *
+     * @param onFunction 每个函数生成完之后调用，_start 在最后
+     */
+    public LinkedHashMap<String, Function> analysePipelined(Consumer<Function> onFunction) throws CompileError {
+        if (diagnostics.isRecovering())
+            return analyse();
+
+        long time = System.nanoTime();
+        program = new Program();
+        var parser = new Parser(tokens, diagnostics);
+        var generator = newGenerator(onFunction);
+        semanticAnalyser.begin(program);
+
+        CompileError semanticError = null;
+        for (Node item = parser.parseItem(program); item != null; item = parser.parseItem(program)) {
+            // 后面的分析和生成都不再回头看前面的全局项
+            program.items.clear();
+            if (semanticError != null)
+                continue;
+            try {
+                semanticAnalyser.analyseItem(item);
+            } catch (CompileError e) {
+                semanticError = e;
+                continue;
             }
+            generator.generateItem(program, item);
         }
-        return analyseExprI();
-    }
-
-    private SymbolEntry analyseExprI() throws CompileError {
-        // I -> UINT_LITERAL | DOUBLE_LITERAL | STRING_LITERAL | CHAR_LITERAL
-        var nameToken = next();
-        TokenType tt = nameToken.getTokenType();
-
-        if (tt == TokenType.Uint_LITERAL) {
-            addInstruction(Operation.push, (long) nameToken.getValue());
-            return new SymbolEntry(true, TokenType.INT_KW);
-        } else if (tt == TokenType.CHAR_LITEREAL) {
-            var c = (int) nameToken.getValue();
-            var s = String.valueOf(c);
-            addInstruction(Operation.push, Long.parseLong(s));
-            return new SymbolEntry(true, TokenType.INT_KW);
-        } else if (tt == TokenType.DOUBLE_LITERAL) {
-            addInstruction(Operation.push, (Double) nameToken.getValue());
-            return new SymbolEntry(true, TokenType.DOUBLE_KW);
-        } else if (tt == TokenType.STRING_LITEREAL) {
-            // String
-            SymbolEntry entry = addGlobalString(nameToken.getValue().toString());
-            addInstruction(Operation.push, (long) entry.order);
-            return new SymbolEntry(true, TokenType.STRING_KW);
-        }
-        throw new ExpectedTokenError(TokenType.Uint_LITERAL, peekedToken);
-    }
+        if (semanticError != null)
+            throw semanticError;
 
-    /**
-     * 检查是否是临时变量
-     *
-     * @param expr
-     */
-    private void checkIfNotTemp(SymbolEntry expr) throws CompileError {
-        if (expr.symbolType == SymbolType.TEMPORARY)
-            throwError(ErrorCode.AssignToTemporary);
+        semanticAnalyser.finish(program);
+        generator.finish(program);
+        logPhase("pipelined analysis", time);
+        return funcTable;
     }
 
     /**
-     * 检查比较两边的类型
-     *
-     * @param exprA
-     * @param exprB
+     * 按打开的优化建立代码生成，生成完的函数先经过窥孔优化再交给 onFunction
      */
-    private void checkIdentType(SymbolEntry exprA, SymbolEntry exprB) throws CompileError {
-        checkIdentInitialized(exprA);
-        checkIdentInitialized(exprB);
-        if (exprA.type != exprB.type) {
-            throwError(ErrorCode.InvalidCalculation);
+    private CodeGenerator newGenerator(Consumer<Function> onFunction) {
+        CodeGenerator generator;
+        if (peephole) {
+            generator = new CodeGenerator(function -> {
+                Peephole.optimize(function);
+                onFunction.accept(function);
+            });
+        } else {
+            generator = new CodeGenerator(onFunction);
         }
+        generator.setRotateLoops(rotateLoops);
+        generator.setDirectCalls(directCalls);
+        return generator;
     }
 
     /**
-     * 检查变量初始化
-     *
-     * @param expr 检查是否赋值
+     * @return 现在的时间
      */
-    private void checkIdentInitialized(SymbolEntry expr) throws CompileError {
-        if (!expr.isInitialized)
-            throwError(ErrorCode.NotInitialized);
+    private static long logPhase(String phase, long start) {
+        long now = System.nanoTime();
+        if (Trace.enabled(Trace.Level.INFO))
+            Trace.log(Trace.Level.INFO, phase + ": " + (now - start) / 1000000 + " ms");
+        return now;
     }
-
-    private void throwError(ErrorCode error) throws CompileError {
-        throw new CompileError() {
-            @Override
-            public ErrorCode getErr() {
-                return error;
-            }
-
-            @Override
-            public Pos getPos() {
-                return null;
-            }
-        };
-    }
-
-    /**
-     * 检查是否是标准库函数
-     *
-     * @param name 函数名
-     */
-    private boolean isStdFunc(String name) {
-        return name.equals("getint") || name.equals("getdouble") || name.equals("getchar") ||
-                name.equals("putint") || name.equals("putdouble") || name.equals("putchar") ||
-                name.equals("putstr") || name.equals("putln");
-    }
-
-    /**
-     * 根据标准库函数生成指令并返回类型
-     *
-     * @param name 函数名
-     * @return Tokentype
-     */
-    private SymbolEntry analyseStdFunc(String name) {
-        switch (name) {
-            case "getint":
-                addInstruction(Operation.scani);
-                return new SymbolEntry(true, TokenType.INT_KW);
-            case "getdouble":
-                addInstruction(Operation.scanf);
-                return new SymbolEntry(true, TokenType.DOUBLE_KW);
-            case "getchar":
-                addInstruction(Operation.scanc);
-                return new SymbolEntry(true, TokenType.INT_KW);
-            case "putint":
-                addInstruction(Operation.printi);
-                return new SymbolEntry(TokenType.VOID_KW);
-            case "putdouble":
-                addInstruction(Operation.printf);
-                return new SymbolEntry(TokenType.VOID_KW);
-            case "putchar":
-                addInstruction(Operation.printc);
-                return new SymbolEntry(TokenType.VOID_KW);
-            case "putln":
-                addInstruction(Operation.println);
-                return new SymbolEntry(TokenType.VOID_KW);
-            case "putstr":
-                addInstruction(Operation.prints);
-                return new SymbolEntry(TokenType.VOID_KW);
-            default:
-                return new SymbolEntry(TokenType.VOID_KW);
-        }
-    }
-
 }
@@ -0,0 +1,576 @@
+package miniplc0java.analyser;
+
+import miniplc0java.ast.AsExpr;
+import miniplc0java.ast.AssignExpr;
+import miniplc0java.ast.BinaryExpr;
+import miniplc0java.ast.BlockStmt;
+import miniplc0java.ast.CallExpr;
+import miniplc0java.ast.DeclStmt;
+import miniplc0java.ast.Expr;
+import miniplc0java.ast.ExprStmt;
+import miniplc0java.ast.ExprWalker;
+import miniplc0java.ast.FunctionDecl;
+import miniplc0java.ast.IfStmt;
+import miniplc0java.ast.LiteralExpr;
+import miniplc0java.ast.NegExpr;
+import miniplc0java.ast.Node;
+import miniplc0java.ast.Program;
+import miniplc0java.ast.ReturnStmt;
+import miniplc0java.ast.Stmt;
+import miniplc0java.ast.WhileStmt;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.Interner;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.util.Trace;
+
+import java.util.Stack;
+import java.util.function.Consumer;
+
+/**
+ * 代码生成
+ * <p>
+ * 遍历语义分析过的语法树，把指令写进每个函数的 body，全局变量的初值写进 _start。
+ * 语法树上已经有所有需要的信息，这里不再报错。
+ */
+public class CodeGenerator extends ExprWalker {
+    /**
+     * 当前生成的函数
+     */
+    Function curFunc;
+
+    /**
+     * while block
+     */
+    Stack<WhileBlock> whileBlocks = new Stack<>();
+
+    /**
+     * 每个函数生成完之后调用，_start 在最后
+     */
+    Consumer<Function> onFunction;
+
+    /**
+     * 是否把 while 生成为条件在末尾的循环
+     */
+    boolean rotateLoops = false;
+
+    /**
+     * 是否用 call 按函数的位置调用，而不是用 callname 按函数名调用
+     */
+    boolean directCalls = false;
+
+    public CodeGenerator() {
+        this(function -> {
+        });
+    }
+
+    /**
+     * @param onFunction 每个函数生成完之后调用，之后不再修改这个函数
+     */
+    public CodeGenerator(Consumer<Function> onFunction) {
+        this.onFunction = onFunction;
+    }
+
+    /**
+     * @param rotateLoops 是否在循环的末尾再判断一次条件，每次循环只跳转一次
+     */
+    public void setRotateLoops(boolean rotateLoops) {
+        this.rotateLoops = rotateLoops;
+    }
+
+    /**
+     * @param directCalls 是否用 call 按函数在函数列表中的位置调用，虚拟机不需要按函数名查找
+     */
+    public void setDirectCalls(boolean directCalls) {
+        this.directCalls = directCalls;
+    }
+
+    public void generate(Program program) throws CompileError {
+        for (var item : program.items)
+            generateItem(program, item);
+        finish(program);
+    }
+
+    /**
+     * 生成一个全局项，全局项按源代码的顺序传入
+     */
+    public void generateItem(Program program, Node item) throws CompileError {
+        if (item instanceof FunctionDecl) {
+            generateFunction((FunctionDecl) item);
+        } else {
+            curFunc = program.start;
+            generateDecl_Stmt((DeclStmt) item);
+        }
+    }
+
+    /**
+     * 所有全局项生成完之后，在 _start 的最后调用 main
+     */
+    public void finish(Program program) {
+        curFunc = program.start;
+        if (program.mainFunction != null)
+            generateCall(program.mainFunction);
+        else
+            addInstruction(Operation.callname, program.main.order);
+        onFunction.accept(curFunc);
+    }
+
+    /**
+     * 添加指令
+     *
+     * @param opt
+     * @param x
+     */
+    public Instruction addInstruction(Operation opt, Integer x) {
+        Instruction instruction = new Instruction(opt, x);
+        curFunc.body.add(instruction);
+        // 增加指令数
+        curFunc.incBody_count();
+        return instruction;
+    }
+
+    public void addInstruction(Operation opt) {
+        this.curFunc.body.add(new Instruction(opt));
+    }
+
+    public void addInstruction(Operation opt, Long x) {
+        this.curFunc.body.add(new Instruction(opt, x));
+    }
+
+    public void addInstruction(Operation opt, Double x) {
+        this.curFunc.body.add(new Instruction(opt, x));
+    }
+
+    /**
+     * 获取当前偏移
+     */
+    public int getInstructionOffset() {
+        return this.curFunc.body.size();
+    }
+
+    private void generateFunction(FunctionDecl function) throws CompileError {
+        curFunc = function.func;
+        generateBlock_Stmt(function.body);
+
+        if (curFunc.body.size() == 0 || curFunc.body.get(curFunc.body.size() - 1).getOpt() != Operation.ret)
+            addInstruction(Operation.ret);
+        if (Trace.enabled(Trace.Level.DEBUG))
+            Trace.log(Trace.Level.DEBUG, "fn " + curFunc.getName() + ": " + curFunc.body.size() + " instructions");
+        onFunction.accept(curFunc);
+    }
+
+    private void generateStmt(Stmt stmt) throws CompileError {
+        switch (stmt.kind) {
+            case BLOCK:
+                generateBlock_Stmt((BlockStmt) stmt);
+                break;
+            case EXPR:
+                walk(((ExprStmt) stmt).expr);
+                break;
+            case DECL:
+                generateDecl_Stmt((DeclStmt) stmt);
+                break;
+            case IF:
+                generateIf_Stmt((IfStmt) stmt);
+                break;
+            case WHILE:
+                generateWhile_Stmt((WhileStmt) stmt);
+                break;
+            case BREAK:
+                // 直接跳到循环的出口，循环生成完之后填入距离
+                whileBlocks.peek().addBreak(getInstructionOffset());
+                addInstruction(Operation.br, 0);
+                break;
+            case CONTINUE:
+                whileBlocks.peek().addContinue(getInstructionOffset());
+                addInstruction(Operation.br, 0);
+                break;
+            case RETURN:
+                generateReturn_Stmt((ReturnStmt) stmt);
+                break;
+            default:
+                // empty_stmt
+                break;
+        }
+    }
+
+    private void generateBlock_Stmt(BlockStmt block) throws CompileError {
+        for (Stmt stmt : block.stmts)
+            generateStmt(stmt);
+    }
+
+    private void generateDecl_Stmt(DeclStmt decl) throws CompileError {
+        if (decl.init == null)
+            return;
+
+        // 全局变量的初值是常量时直接写进全局变量表，_start 里不生成指令
+        var constant = decl.init.constant;
+        if (constant != null && decl.entry.symbolType == SymbolType.ALL) {
+            decl.entry.initialValue = constant.tokenType == TokenType.DOUBLE_LITERAL
+                    ? Double.doubleToRawLongBits(constant.doubleValue)
+                    : constant.longValue;
+            return;
+        }
+
+        loadAddress(decl.entry);
+        walk(decl.init);
+
+        // 存储变量
+        addInstruction(Operation.store64);
+    }
+
+    private void generateIf_Stmt(IfStmt stmt) throws CompileError {
+        // 条件为 false 时跳过 block，跳转距离在 block 生成完之后填入
+        Instruction br1 = generateCondition(stmt.condition, false);
+        int start = getInstructionOffset();
+
+        generateBlock_Stmt(stmt.then);
+
+        // 跳过其他分支
+        Instruction br2 = addInstruction(Operation.br, 0);
+        int middle = getInstructionOffset();
+        if (br1 != null)
+            br1.setX(middle - start);
+
+        if (stmt.otherwise instanceof IfStmt)
+            generateIf_Stmt((IfStmt) stmt.otherwise);
+        else if (stmt.otherwise != null)
+            generateBlock_Stmt((BlockStmt) stmt.otherwise);
+
+        int end = getInstructionOffset();
+        br2.setX(end - middle);
+    }
+
+    private void generateWhile_Stmt(WhileStmt stmt) throws CompileError {
+        if (rotateLoops) {
+            generateRotatedWhile(stmt);
+            return;
+        }
+
+        // 设置开始地址
+        int start = getInstructionOffset();
+
+        Instruction br1 = generateCondition(stmt.condition, false);
+        int middle = getInstructionOffset();
+
+        var block = new WhileBlock();
+        whileBlocks.push(block);
+        generateBlock_Stmt(stmt.body);
+
+        // 跳回原地址
+        Instruction br2 = addInstruction(Operation.br, 0);
+        int end = getInstructionOffset();
+
+        // 跳过while块
+        if (br1 != null)
+            br1.setX(end - middle);
+        block.patchBreaks(curFunc.body, end);
+        block.patchContinues(curFunc.body, start);
+
+        // 循环while
+        br2.setX(start - end);
+
+        whileBlocks.pop();
+    }
+
+    /**
+     * 条件在末尾的循环：开始时判断一次条件，不成立时跳过整个循环；
+     * 循环体之后再生成一次条件，成立时跳回循环体的开始
+     */
+    private void generateRotatedWhile(WhileStmt stmt) throws CompileError {
+        Instruction guard = generateCondition(stmt.condition, false);
+        int start = getInstructionOffset();
+
+        var block = new WhileBlock();
+        whileBlocks.push(block);
+        generateBlock_Stmt(stmt.body);
+
+        // continue 跳到末尾的条件
+        int test = getInstructionOffset();
+        Instruction back = generateCondition(stmt.condition, true);
+        int end = getInstructionOffset();
+
+        if (guard != null)
+            guard.setX(end - start);
+        if (back != null)
+            back.setX(start - end);
+        block.patchBreaks(curFunc.body, end);
+        block.patchContinues(curFunc.body, test);
+
+        whileBlocks.pop();
+    }
+
+    /**
+     * 生成 if 和 while 的条件，以及按条件的跳转
+     * <p>
+     * 比较直接按 cmpi、cmpf 的结果跳转，不把结果变成 0 或 1：== 和 != 不需要 set 指令，
+     * &lt;= 和 &gt;= 不需要 not，换成相反的跳转指令。
+     *
+     * @param whenTrue 条件成立时跳转还是不成立时跳转
+     * @return 需要填入跳转距离的指令，条件是整数常量、一定不跳转时返回 null
+     */
+    private Instruction generateCondition(Expr condition, boolean whenTrue) throws CompileError {
+        var constant = condition.constant;
+        if (constant != null && constant.tokenType != TokenType.DOUBLE_LITERAL)
+            return (constant.longValue != 0) == whenTrue ? addInstruction(Operation.br, 0) : null;
+
+        var binary = condition.kind == Expr.Kind.BINARY ? (BinaryExpr) condition : null;
+        var type = binary != null ? binary.left.result.getType() : null;
+        if (binary == null || !binary.isComparison() || type != TokenType.INT_KW && type != TokenType.DOUBLE_KW) {
+            walk(condition);
+            return addInstruction(whenTrue ? Operation.brtrue : Operation.brfalse, 0);
+        }
+
+        walk(binary.left);
+        walk(binary.right);
+        addInstruction(type == TokenType.INT_KW ? Operation.cmpi : Operation.cmpf);
+        // 栈顶不为 0 时条件成立
+        boolean nonZero;
+        switch (binary.op) {
+            case LT:
+                addInstruction(Operation.setlt);
+                nonZero = true;
+                break;
+            case GT:
+                addInstruction(Operation.setgt);
+                nonZero = true;
+                break;
+            case LE:
+                addInstruction(Operation.setgt);
+                nonZero = false;
+                break;
+            case GE:
+                addInstruction(Operation.setlt);
+                nonZero = false;
+                break;
+            case EQ:
+                nonZero = false;
+                break;
+            default:
+                nonZero = true;
+                break;
+        }
+        return addInstruction(nonZero == whenTrue ? Operation.brtrue : Operation.brfalse, 0);
+    }
+
+    private void generateReturn_Stmt(ReturnStmt stmt) throws CompileError {
+        if (stmt.value != null) {
+            // 加载返回值地址
+            addInstruction(Operation.arga, 0);
+            walk(stmt.value);
+            // 存储函数返回值
+            addInstruction(Operation.store64);
+        }
+        addInstruction(Operation.ret);
+    }
+
+    /**
+     * 加载变量的地址，函数名没有地址
+     */
+    private void loadAddress(SymbolEntry entry) {
+        if (entry.symbolType == SymbolType.ALL)
+            addInstruction(Operation.globa, entry.order);
+        else if (entry.symbolType == SymbolType.PARAM) {
+            // 没有返回值时参数从 0 开始
+            if (curFunc.ret_slots == 0)
+                addInstruction(Operation.arga, entry.order - 1);
+            else
+                addInstruction(Operation.arga, entry.order);
+        } else if (entry.symbolType == SymbolType.VARIABLE)
+            addInstruction(Operation.loca, entry.order);
+    }
+
+    @Override
+    protected void enter(Expr node) throws CompileError {
+        // 折叠过的表达式只 push 结果，子表达式都跳过
+        if (node.constant != null) {
+            generateLiteral(node.constant);
+            return;
+        }
+        switch (node.kind) {
+            case LITERAL:
+                generateLiteral((LiteralExpr) node);
+                break;
+            case IDENT:
+                loadAddress(node.result.getSymbol());
+                addInstruction(Operation.load64);
+                break;
+            case CALL: {
+                // 为返回值分配空间
+                var func = ((CallExpr) node).func;
+                if (func != null && func.ret_type != TokenType.VOID_KW)
+                    addInstruction(Operation.stackalloc, 1);
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    @Override
+    protected boolean beforeChild(Expr node, int index) throws CompileError {
+        if (node.constant != null)
+            return false;
+        if (node.kind != Expr.Kind.ASSIGN || index != 0)
+            return true;
+        // 左边只生成到取值之前：变量只加载地址，取负号的变量只生成负号之前的部分
+        var target = ((AssignExpr) node).target;
+        if (target.kind == Expr.Kind.NEG)
+            walk(((NegExpr) target).operand);
+        else
+            loadAddress(target.result.getSymbol());
+        return false;
+    }
+
+    @Override
+    protected void exit(Expr node) throws CompileError {
+        if (node.constant != null)
+            return;
+        switch (node.kind) {
+            case CALL: {
+                var call = (CallExpr) node;
+                if (call.func == null)
+                    generateStdFunc(call.id);
+                else
+                    generateCall(call.func);
+                break;
+            }
+            case NEG: {
+                var type = ((NegExpr) node).operand.result.getType();
+                if (type == TokenType.INT_KW)
+                    addInstruction(Operation.negi);
+                else if (type == TokenType.DOUBLE_KW)
+                    addInstruction(Operation.negf);
+                break;
+            }
+            case AS:
+                addInstruction(((AsExpr) node).type == TokenType.DOUBLE_KW ? Operation.itof : Operation.ftoi);
+                break;
+            case BINARY: {
+                var binary = (BinaryExpr) node;
+                if (binary.isComparison())
+                    generateCompare(binary.op, binary.left.result.getType());
+                else
+                    generateArithmetic(binary.op, binary.left.result.getType());
+                break;
+            }
+            case ASSIGN:
+                addInstruction(Operation.store64);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 调用文件里定义的函数，标准库函数直接生成对应的指令
+     */
+    private void generateCall(Function func) {
+        if (directCalls)
+            addInstruction(Operation.call, func.index);
+        else
+            addInstruction(Operation.callname, func.order);
+    }
+
+    private void generateLiteral(LiteralExpr literal) {
+        switch (literal.tokenType) {
+            case DOUBLE_LITERAL:
+                addInstruction(Operation.push, literal.doubleValue);
+                break;
+            case STRING_LITEREAL:
+                addInstruction(Operation.push, (long) literal.stringEntry.order);
+                break;
+            default:
+                addInstruction(Operation.push, literal.longValue);
+                break;
+        }
+    }
+
+    private void generateCompare(TokenType op, TokenType type) {
+        // 设置比较函数
+        if (type == TokenType.INT_KW)
+            addInstruction(Operation.cmpi);
+        else if (type == TokenType.DOUBLE_KW)
+            addInstruction(Operation.cmpf);
+
+        switch (op) {
+            case LT:
+                addInstruction(Operation.setlt);
+                break;
+            case GT:
+                addInstruction(Operation.setgt);
+                break;
+            case LE:
+                // 先大于再取反
+                addInstruction(Operation.setgt);
+                addInstruction(Operation.not);
+                break;
+            case GE:
+                // 先小于再取反
+                addInstruction(Operation.setlt);
+                addInstruction(Operation.not);
+                break;
+            case EQ:
+                addInstruction(Operation.not);
+                break;
+            default:
+                // NEQ 不需要额外的指令
+                break;
+        }
+    }
+
+    private void generateArithmetic(TokenType op, TokenType type) {
+        boolean isInt = type == TokenType.INT_KW;
+        switch (op) {
+            case PLUS:
+                addInstruction(isInt ? Operation.addi : Operation.addf);
+                break;
+            case MINUS:
+                addInstruction(isInt ? Operation.subi : Operation.subf);
+                break;
+            case MUL:
+                addInstruction(isInt ? Operation.muli : Operation.mulf);
+                break;
+            default:
+                addInstruction(isInt ? Operation.divi : Operation.divf);
+                break;
+        }
+    }
+
+    /**
+     * 根据标准库函数生成指令
+     *
+     * @param id 函数名的编号
+     */
+    private void generateStdFunc(int id) {
+        switch (id) {
+            case Interner.GETINT:
+                addInstruction(Operation.scani);
+                break;
+            case Interner.GETDOUBLE:
+                addInstruction(Operation.scanf);
+                break;
+            case Interner.GETCHAR:
+                addInstruction(Operation.scanc);
+                break;
+            case Interner.PUTINT:
+                addInstruction(Operation.printi);
+                break;
+            case Interner.PUTDOUBLE:
+                addInstruction(Operation.printf);
+                break;
+            case Interner.PUTCHAR:
+                addInstruction(Operation.printc);
+                break;
+            case Interner.PUTLN:
+                addInstruction(Operation.println);
+                break;
+            case Interner.PUTSTR:
+                addInstruction(Operation.prints);
+                break;
+            default:
+                break;
+        }
+    }
+}
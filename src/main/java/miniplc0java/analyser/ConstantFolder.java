@@ -0,0 +1,150 @@
+package miniplc0java.analyser;
+
+import miniplc0java.ast.AsExpr;
+import miniplc0java.ast.BinaryExpr;
+import miniplc0java.ast.Expr;
+import miniplc0java.ast.LiteralExpr;
+import miniplc0java.ast.NegExpr;
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * 常量折叠
+ * <p>
+ * 操作数都是常量时按虚拟机的规则在编译时算出结果：整数按 64 位回绕，浮点按 IEEE 754，
+ * 比较的结果和 cmp、setlt、setgt、not 留在栈上的值相同。
+ * 虚拟机会出错或者结果可能不同的不折叠：除以 0、最小的整数除以 -1、和 NaN 比较、超出范围的浮点转整数。
+ */
+final class ConstantFolder {
+    private ConstantFolder() {
+    }
+
+    /**
+     * 子表达式已经折叠过，只看它们的 constant
+     *
+     * @return 折叠的结果，不能折叠时返回 null
+     */
+    static LiteralExpr fold(Expr node) {
+        switch (node.kind) {
+            case NEG:
+                return foldNeg((NegExpr) node);
+            case AS:
+                return foldAs((AsExpr) node);
+            case BINARY:
+                return foldBinary((BinaryExpr) node);
+            default:
+                return null;
+        }
+    }
+
+    private static LiteralExpr foldNeg(NegExpr node) {
+        var value = node.operand.constant;
+        if (value == null)
+            return null;
+        switch (node.operand.result.getType()) {
+            case INT_KW:
+                return intLiteral(-value.longValue, node.offset);
+            case DOUBLE_KW:
+                return new LiteralExpr(-value.doubleValue, node.offset);
+            default:
+                return null;
+        }
+    }
+
+    private static LiteralExpr foldAs(AsExpr node) {
+        var value = node.operand.constant;
+        if (value == null)
+            return null;
+        if (node.type == TokenType.DOUBLE_KW)
+            return new LiteralExpr((double) value.longValue, node.offset);
+        double x = value.doubleValue;
+        if (!(x >= -0x1p63 && x < 0x1p63))
+            return null;
+        return intLiteral((long) x, node.offset);
+    }
+
+    private static LiteralExpr foldBinary(BinaryExpr node) {
+        var left = node.left.constant;
+        var right = node.right.constant;
+        if (left == null || right == null)
+            return null;
+        var type = node.left.result.getType();
+        if (type == TokenType.INT_KW)
+            return node.isComparison()
+                    ? compare(node, Long.compare(left.longValue, right.longValue))
+                    : foldInt(node, left.longValue, right.longValue);
+        if (type == TokenType.DOUBLE_KW) {
+            double a = left.doubleValue;
+            double b = right.doubleValue;
+            if (!node.isComparison())
+                return foldDouble(node, a, b);
+            if (Double.isNaN(a) || Double.isNaN(b))
+                return null;
+            return compare(node, a < b ? -1 : a > b ? 1 : 0);
+        }
+        // 比较的结果之间的运算不折叠
+        return null;
+    }
+
+    /**
+     * @param cmp cmpi 或 cmpf 的结果：-1、0 或 1
+     */
+    private static LiteralExpr compare(BinaryExpr node, int cmp) {
+        long value;
+        switch (node.op) {
+            case LT:
+                value = cmp < 0 ? 1 : 0;
+                break;
+            case GT:
+                value = cmp > 0 ? 1 : 0;
+                break;
+            case LE:
+                value = cmp > 0 ? 0 : 1;
+                break;
+            case GE:
+                value = cmp < 0 ? 0 : 1;
+                break;
+            case EQ:
+                value = cmp == 0 ? 1 : 0;
+                break;
+            default:
+                // NEQ 直接用比较的结果
+                value = cmp;
+                break;
+        }
+        return intLiteral(value, node.offset);
+    }
+
+    private static LiteralExpr foldInt(BinaryExpr node, long a, long b) {
+        switch (node.op) {
+            case PLUS:
+                return intLiteral(a + b, node.offset);
+            case MINUS:
+                return intLiteral(a - b, node.offset);
+            case MUL:
+                return intLiteral(a * b, node.offset);
+            default:
+                if (b == 0 || a == Long.MIN_VALUE && b == -1)
+                    return null;
+                return intLiteral(a / b, node.offset);
+        }
+    }
+
+    private static LiteralExpr foldDouble(BinaryExpr node, double a, double b) {
+        switch (node.op) {
+            case PLUS:
+                return new LiteralExpr(a + b, node.offset);
+            case MINUS:
+                return new LiteralExpr(a - b, node.offset);
+            case MUL:
+                return new LiteralExpr(a * b, node.offset);
+            default:
+                if (b == 0)
+                    return null;
+                return new LiteralExpr(a / b, node.offset);
+        }
+    }
+
+    private static LiteralExpr intLiteral(long value, int offset) {
+        return new LiteralExpr(TokenType.Uint_LITERAL, value, offset);
+    }
+}
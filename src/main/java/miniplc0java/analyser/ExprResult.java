@@ -0,0 +1,86 @@
+package miniplc0java.analyser;
+
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * 表达式的值：类型、是否已初始化、是否是临时值
+ * <p>
+ * 不可变。临时值按（类型，是否初始化）缓存，分析表达式时不再分配对象；
+ * 变量的值每个符号一个，是否初始化随符号变化，赋值之后再读就是已初始化。
+ */
+public final class ExprResult {
+    private static final ExprResult[] TEMPORARIES = new ExprResult[TokenType.values().length * 2];
+
+    static {
+        for (TokenType type : TokenType.values()) {
+            TEMPORARIES[type.ordinal() * 2] = new ExprResult(type, false, null);
+            TEMPORARIES[type.ordinal() * 2 + 1] = new ExprResult(type, true, null);
+        }
+    }
+
+    private final TokenType type;
+    private final boolean initialized;
+    // 变量的符号，临时值为 null
+    private final SymbolEntry symbol;
+
+    private ExprResult(TokenType type, boolean initialized, SymbolEntry symbol) {
+        this.type = type;
+        this.initialized = initialized;
+        this.symbol = symbol;
+    }
+
+    /**
+     * @return 临时值
+     */
+    public static ExprResult of(TokenType type, boolean initialized) {
+        return TEMPORARIES[type.ordinal() * 2 + (initialized ? 1 : 0)];
+    }
+
+    /**
+     * @return 已初始化的临时值
+     */
+    public static ExprResult of(TokenType type) {
+        return of(type, true);
+    }
+
+    /**
+     * @return 变量的值，第一次用到时创建
+     */
+    public static ExprResult of(SymbolEntry symbol) {
+        if (symbol.result == null)
+            symbol.result = new ExprResult(symbol.type, false, symbol);
+        return symbol.result;
+    }
+
+    public TokenType getType() {
+        return type;
+    }
+
+    public boolean isInitialized() {
+        return symbol != null ? symbol.isInitialized : initialized;
+    }
+
+    public boolean isConstant() {
+        return symbol != null && symbol.isConstant;
+    }
+
+    public boolean isTemporary() {
+        return symbol == null;
+    }
+
+    /**
+     * @return 变量的符号，临时值为 null
+     */
+    public SymbolEntry getSymbol() {
+        return symbol;
+    }
+
+    @Override
+    public String toString() {
+        return "ExprResult{" +
+                "type=" + type +
+                ", initialized=" + isInitialized() +
+                ", symbol=" + symbol +
+                '}';
+    }
+}
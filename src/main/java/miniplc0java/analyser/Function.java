@@ -9,6 +9,8 @@ public class Function {
     String name;
     // 在全局变量表中占得位置
     int order;
+    // 在函数列表中的位置，call 指令使用
+    int index;
     // 返回值占的节点数
     int ret_slots = 0;
     // 返回值类型
@@ -81,6 +83,17 @@ public class Function {
         return order;
     }
 
+    /**
+     * @param index 函数在函数列表中的位置
+     */
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
     public int getLoc_slots() {
         return loc_slots;
     }
@@ -114,6 +127,7 @@ public class Function {
         return "Function{" +
                 "name='" + name + '\'' +
                 ", order=" + order +
+                ", index=" + index +
                 ", ret_slots=" + ret_slots +
                 ", ret_type=" + ret_type +
                 ", param_slots=" + param_slots +
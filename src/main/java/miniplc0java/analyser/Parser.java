@@ -0,0 +1,617 @@
+package miniplc0java.analyser;
+
+import miniplc0java.ast.AsExpr;
+import miniplc0java.ast.AssignExpr;
+import miniplc0java.ast.BinaryExpr;
+import miniplc0java.ast.BlockStmt;
+import miniplc0java.ast.CallExpr;
+import miniplc0java.ast.DeclStmt;
+import miniplc0java.ast.Expr;
+import miniplc0java.ast.ExprStmt;
+import miniplc0java.ast.FunctionDecl;
+import miniplc0java.ast.IdentExpr;
+import miniplc0java.ast.IfStmt;
+import miniplc0java.ast.LiteralExpr;
+import miniplc0java.ast.NegExpr;
+import miniplc0java.ast.Node;
+import miniplc0java.ast.Param;
+import miniplc0java.ast.Program;
+import miniplc0java.ast.ReturnStmt;
+import miniplc0java.ast.Stmt;
+import miniplc0java.ast.WhileStmt;
+import miniplc0java.error.CompileError;
+import miniplc0java.error.Diagnostics;
+import miniplc0java.error.ExpectedTokenError;
+import miniplc0java.error.TokenizeError;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.util.Trace;
+
+import java.util.ArrayList;
+
+/**
+ * 语法分析，只检查语法并建立语法树，符号和类型留给 {@link SemanticAnalyser}
+ * <p>
+ * 恢复模式下，一条语句或一个全局项出错后跳到下一条语句的开头继续分析。
+ * <p>
+ * 只回看刚读过的几个 token，标识符编号和偏移在读到时就取出来，所以 token 可以放在固定大小的环里。
+ */
+public class Parser {
+    /**
+     * 整个文件的 token
+     */
+    TokenBuffer tokens;
+
+    /**
+     * 下一个 token 的下标
+     */
+    int cursor = 0;
+
+    /**
+     * 错误的收集
+     */
+    Diagnostics diagnostics;
+
+    public Parser(TokenBuffer tokens, Diagnostics diagnostics) {
+        this.tokens = tokens;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * 构造下一个 Token 的对象，只在报错时使用
+     *
+     * @return
+     * @throws TokenizeError
+     */
+    private Token peek() throws TokenizeError {
+        return tokens.getToken(cursor);
+    }
+
+    /**
+     * 查看下一个 Token 的类型
+     *
+     * @return
+     * @throws TokenizeError
+     */
+    private TokenType peekType() throws TokenizeError {
+        return tokens.getType(cursor);
+    }
+
+    /**
+     * 前进一个 Token
+     *
+     * @return 这个 token 的下标
+     * @throws TokenizeError
+     */
+    private int next() throws TokenizeError {
+        tokens.getType(cursor);
+        return cursor++;
+    }
+
+    /**
+     * 如果下一个 token 的类型是 tt，则返回 true
+     *
+     * @param tt
+     * @return
+     * @throws TokenizeError
+     */
+    private boolean check(TokenType tt) throws TokenizeError {
+        return peekType() == tt;
+    }
+
+    /**
+     * 如果下一个 token 的类型是 tt，则前进一个 token
+     *
+     * @param tt 类型
+     * @return 是否匹配
+     * @throws TokenizeError
+     */
+    private boolean nextIf(TokenType tt) throws TokenizeError {
+        if (peekType() == tt) {
+            cursor++;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * 如果下一个 token 的类型是 tt，则前进一个 token 并返回，否则抛出异常
+     *
+     * @param tt 类型
+     * @return 这个 token 的下标
+     * @throws CompileError 如果类型不匹配
+     */
+    private int expect(TokenType tt) throws CompileError {
+        if (peekType() == tt) {
+            return cursor++;
+        } else {
+            var token = peek();
+            if (Trace.enabled(Trace.Level.DEBUG))
+                Trace.log(Trace.Level.DEBUG, "expected " + tt + ", got " + token);
+            throw new ExpectedTokenError(tt, token);
+        }
+    }
+
+    /**
+     * 检查函数返回值TY的，如果是则前进一位
+     *
+     * @return 这个 token
+     * @throws CompileError 如果类型不匹配
+     */
+    private TokenType expectTY() throws CompileError {
+        if (check(TokenType.INT_KW) || check(TokenType.VOID_KW) || check(TokenType.DOUBLE_KW)) {
+            return tokens.getType(cursor++);
+        } else {
+            throw new ExpectedTokenError(TokenType.TY_KW, peek());
+        }
+    }
+
+    /**
+     * 检查变量定义TY的，如果是则前进一位
+     *
+     * @return 这个 token
+     * @throws CompileError 如果类型不匹配
+     */
+    private TokenType expectParam_TY() throws CompileError {
+        if (check(TokenType.INT_KW) || check(TokenType.DOUBLE_KW)) {
+            return tokens.getType(cursor++);
+        } else {
+            throw new ExpectedTokenError(TokenType.TY_KW, peek());
+        }
+    }
+
+    /**
+     * 下一个 token 的偏移
+     */
+    private int offset() throws TokenizeError {
+        peekType();
+        return tokens.getStartOffset(cursor);
+    }
+
+    /**
+     * 报告一条语句或一个全局项里的错误，跳到下一条语句继续
+     *
+     * @param start 出错的语句开始的下标
+     * @throws CompileError 不在恢复模式，或者是词法错误
+     */
+    private void recover(CompileError error, int start) throws CompileError {
+        // 词法错误之后没有 token，交给 parseProgram 结束分析
+        if (error instanceof TokenizeError)
+            throw error;
+        diagnostics.report(error);
+        exprDepth = 0;
+        synchronize(start);
+    }
+
+    /**
+     * 跳过 token，直到下一条语句的开头、所在块的 '}' 或者文件结束，
+     * 出错的语句里的块整个跳过
+     *
+     * @param start 出错的语句开始的下标
+     */
+    private void synchronize(int start) throws TokenizeError {
+        // 一个 token 都没有读时至少跳过一个，保证不会停在原地
+        if (cursor == start && !check(TokenType.EOF))
+            cursor++;
+        int depth = 0;
+        while (true) {
+            switch (peekType()) {
+                case EOF:
+                    return;
+                case L_BRACE:
+                    depth++;
+                    break;
+                case R_BRACE:
+                    if (depth == 0)
+                        return;
+                    depth--;
+                    break;
+                case SEMICOLON:
+                    if (depth == 0) {
+                        cursor++;
+                        return;
+                    }
+                    break;
+                case LET_KW:
+                case CONST_KW:
+                case FN_KW:
+                case IF_KW:
+                case WHILE_KW:
+                case RETURN_KW:
+                case BREAK_KW:
+                case CONTINUE_KW:
+                    if (depth == 0)
+                        return;
+                    break;
+                default:
+                    break;
+            }
+            cursor++;
+        }
+    }
+
+    public Program parseProgram() throws CompileError {
+        // program -> item*
+        var program = new Program();
+        while (parseItem(program) != null) {
+            // 全局项在 parseItem 里加入 program
+        }
+        return program;
+    }
+
+    /**
+     * 分析下一个全局项并加入 program
+     *
+     * @return 这个全局项，没有更多的全局项时返回 null
+     */
+    public Node parseItem(Program program) throws CompileError {
+        try {
+            while (true) {
+                int start = cursor;
+                try {
+                    // item -> function | decl_stmt
+                    Node item;
+                    if (check(TokenType.LET_KW) || check(TokenType.CONST_KW))
+                        item = parseDecl_Stmt();
+                    else if (check(TokenType.FN_KW))
+                        item = parseFunction();
+                    else
+                        break;
+                    program.items.add(item);
+                    return item;
+                } catch (CompileError e) {
+                    recover(e, start);
+                }
+            }
+            program.end = offset();
+        } catch (TokenizeError e) {
+            // 分析到词法错误为止
+            diagnostics.report(e);
+            program.end = -1;
+        }
+        return null;
+    }
+
+    private FunctionDecl parseFunction() throws CompileError {
+        // function -> 'fn' IDENT '(' function_param_list? ')' '->' ty block_stmt
+        int start = expect(TokenType.FN_KW);
+
+        int nameToken = expect(TokenType.IDENT);
+        var function = new FunctionDecl(tokens.getId(nameToken), tokens.getStartOffset(start));
+
+        // (
+        expect(TokenType.L_PAREN);
+
+        // function_param_list -> function_param (',' function_param)*
+        if (check(TokenType.IDENT) || check(TokenType.CONST_KW)) {
+            function.params.add(parseFunctionParam());
+            while (nextIf(TokenType.COMMA))
+                function.params.add(parseFunctionParam());
+        }
+
+        // )->
+        expect(TokenType.R_PAREN);
+        expect(TokenType.ARROW);
+
+        function.returnType = expectTY();
+        function.body = parseBlock_Stmt();
+        return function;
+    }
+
+    private Param parseFunctionParam() throws CompileError {
+        // function_param -> 'const'? IDENT ':' ty
+        int start = offset();
+        boolean isConstant = nextIf(TokenType.CONST_KW);
+
+        int id = tokens.getId(expect(TokenType.IDENT));
+        expect(TokenType.COLON);
+        var type = expectParam_TY();
+        return new Param(isConstant, id, type, start);
+    }
+
+    private Stmt parseStmt() throws CompileError {
+        // stmt -> expr_stmt
+        //       | decl_stmt
+        //       | if_stmt
+        //       | while_stmt
+        //       | break_stmt
+        //       | continue_stmt
+        //       | return_stmt
+        //       | block_stmt
+        //       | empty_stmt
+        int start = offset();
+        switch (peekType()) {
+            case L_BRACE:
+                return parseBlock_Stmt();
+            case SEMICOLON:
+                // empty_stmt -> ';'
+                next();
+                return new Stmt(Stmt.Kind.EMPTY, start);
+            case RETURN_KW:
+                return parseReturn_Stmt();
+            case CONTINUE_KW:
+                // continue_stmt -> 'continue' ';'
+                next();
+                expect(TokenType.SEMICOLON);
+                return new Stmt(Stmt.Kind.CONTINUE, start);
+            case BREAK_KW:
+                // break_stmt -> 'break' ';'
+                next();
+                expect(TokenType.SEMICOLON);
+                return new Stmt(Stmt.Kind.BREAK, start);
+            case WHILE_KW:
+                // while_stmt -> 'while' expr block_stmt
+                next();
+                var condition = parseExpr();
+                return new WhileStmt(condition, parseBlock_Stmt(), start);
+            case IF_KW:
+                return parseIf_Stmt();
+            case LET_KW:
+            case CONST_KW:
+                return parseDecl_Stmt();
+            default:
+                // expr_stmt -> expr，分号留给下一条空语句
+                return new ExprStmt(parseExpr(), start);
+        }
+    }
+
+    private BlockStmt parseBlock_Stmt() throws CompileError {
+        // block_stmt -> '{' stmt* '}'
+        var block = new BlockStmt(offset());
+        expect(TokenType.L_BRACE);
+
+        while (!check(TokenType.R_BRACE) && !check(TokenType.EOF)) {
+            int start = cursor;
+            try {
+                block.stmts.add(parseStmt());
+            } catch (CompileError e) {
+                recover(e, start);
+            }
+        }
+
+        expect(TokenType.R_BRACE);
+        return block;
+    }
+
+    private DeclStmt parseDecl_Stmt() throws CompileError {
+        // let_decl_stmt -> 'let' IDENT ':' ty ('=' expr)? ';'
+        // const_decl_stmt -> 'const' IDENT ':' ty '=' expr ';'
+        int start = offset();
+        boolean isConstant = check(TokenType.CONST_KW);
+        next();
+
+        int id = tokens.getId(expect(TokenType.IDENT));
+        expect(TokenType.COLON);
+        var type = expectParam_TY();
+
+        Expr init = null;
+        if (isConstant) {
+            expect(TokenType.ASSIGN);
+            init = parseExpr();
+        } else if (nextIf(TokenType.ASSIGN)) {
+            init = parseExpr();
+        }
+
+        expect(TokenType.SEMICOLON);
+        return new DeclStmt(isConstant, id, type, init, start);
+    }
+
+    private IfStmt parseIf_Stmt() throws CompileError {
+        // if_stmt -> 'if' expr block_stmt ('else' 'if' expr block_stmt)* ('else' block_stmt)?
+        int start = offset();
+        expect(TokenType.IF_KW);
+        var condition = parseExpr();
+        var then = parseBlock_Stmt();
+
+        Stmt otherwise = null;
+        if (nextIf(TokenType.ELSE_KW)) {
+            if (check(TokenType.IF_KW))
+                otherwise = parseIf_Stmt();
+            else if (check(TokenType.L_BRACE))
+                otherwise = parseBlock_Stmt();
+        }
+        return new IfStmt(condition, then, otherwise, start);
+    }
+
+    private ReturnStmt parseReturn_Stmt() throws CompileError {
+        // return_stmt -> 'return' expr? ';'
+        int start = offset();
+        expect(TokenType.RETURN_KW);
+        Expr value = null;
+        if (!check(TokenType.SEMICOLON))
+            value = parseExpr();
+        expect(TokenType.SEMICOLON);
+        return new ReturnStmt(value, start);
+    }
+
+    // 表达式用 Pratt 分析法，运算符的左结合力按 TokenType 查表，0 表示不是中缀运算符
+    // 赋值最松且右结合，比较不能连用，as 是后缀运算符，比所有二元运算符都紧
+    private static final int BP_ASSIGN = 1;
+    private static final int BP_COMPARE = 2;
+    private static final int BP_ADD = 3;
+    private static final int BP_MUL = 4;
+    private static final int BP_AS = 5;
+    private static final int[] LEFT_BP = new int[TokenType.values().length];
+
+    static {
+        LEFT_BP[TokenType.ASSIGN.ordinal()] = BP_ASSIGN;
+        LEFT_BP[TokenType.LT.ordinal()] = BP_COMPARE;
+        LEFT_BP[TokenType.GT.ordinal()] = BP_COMPARE;
+        LEFT_BP[TokenType.LE.ordinal()] = BP_COMPARE;
+        LEFT_BP[TokenType.GE.ordinal()] = BP_COMPARE;
+        LEFT_BP[TokenType.EQ.ordinal()] = BP_COMPARE;
+        LEFT_BP[TokenType.NEQ.ordinal()] = BP_COMPARE;
+        LEFT_BP[TokenType.PLUS.ordinal()] = BP_ADD;
+        LEFT_BP[TokenType.MINUS.ordinal()] = BP_ADD;
+        LEFT_BP[TokenType.MUL.ordinal()] = BP_MUL;
+        LEFT_BP[TokenType.DIV.ordinal()] = BP_MUL;
+        LEFT_BP[TokenType.AS_KW.ordinal()] = BP_AS;
+    }
+
+    /**
+     * 表达式分析时正在等待操作数的一层
+     * <p>
+     * 括号、负号、赋值右边、函数参数和二元运算符的右操作数都压一层，不再递归调用，
+     * 所以嵌套再深也不会栈溢出
+     */
+    private enum FrameKind {
+        ROOT, PAREN, NEG, ASSIGN, CALL, BINARY
+    }
+
+    private static final class ExprFrame {
+        FrameKind kind;
+        // 这一层只接受左结合力大于 minBp 的运算符
+        int minBp;
+        // 这一层开始的偏移
+        int offset;
+        // BINARY 的运算符
+        TokenType op;
+        // BINARY 的左操作数，ASSIGN 的被赋值表达式
+        Expr left;
+        // CALL 正在分析参数的调用
+        CallExpr call;
+        // 这一层已经有过一次比较，比较运算符不能连用
+        boolean compared;
+        // 这一层已经赋值过，不能再接运算符
+        boolean closed;
+    }
+
+    /**
+     * 表达式分析的栈，ExprFrame 对象重复使用
+     */
+    private final ArrayList<ExprFrame> exprFrames = new ArrayList<>();
+    private int exprDepth = 0;
+
+    private ExprFrame pushFrame(FrameKind kind, int minBp, int offset) {
+        if (exprDepth == exprFrames.size())
+            exprFrames.add(new ExprFrame());
+        var frame = exprFrames.get(exprDepth++);
+        frame.kind = kind;
+        frame.minBp = minBp;
+        frame.offset = offset;
+        frame.left = null;
+        frame.call = null;
+        frame.compared = false;
+        frame.closed = false;
+        return frame;
+    }
+
+    private Expr parseExpr() throws CompileError {
+        // expr -> operand ( binary_op operand | 'as' ty | '=' expr )*
+        int base = exprDepth;
+        pushFrame(FrameKind.ROOT, 0, offset());
+        while (true) {
+            // 读一个操作数，遇到需要先分析子表达式的情况就压一层，然后继续读操作数
+            var value = parseOperand();
+            while (value != null) {
+                var top = exprFrames.get(exprDepth - 1);
+                var tt = peekType();
+                int bp = LEFT_BP[tt.ordinal()];
+                if (!top.closed && bp > top.minBp && !(bp == BP_COMPARE && top.compared)) {
+                    int start = next();
+                    if (bp == BP_AS) {
+                        value = new AsExpr(value, expectParam_TY(), tokens.getStartOffset(start));
+                    } else if (bp == BP_ASSIGN) {
+                        pushFrame(FrameKind.ASSIGN, 0, tokens.getStartOffset(start)).left = value;
+                        value = null;
+                    } else {
+                        var frame = pushFrame(FrameKind.BINARY, bp, tokens.getStartOffset(start));
+                        frame.op = tt;
+                        frame.left = value;
+                        value = null;
+                    }
+                } else {
+                    // 这一层的操作数已经完整了
+                    exprDepth--;
+                    if (exprDepth == base)
+                        return value;
+                    value = completeFrame(top, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * 分析一个操作数
+     *
+     * @return 操作数，需要先分析子表达式时压入一层并返回 null
+     */
+    private Expr parseOperand() throws CompileError {
+        // operand -> '-' expr | '(' expr ')' | IDENT | IDENT '(' (expr (',' expr)*)? ')' | literal
+        int start = offset();
+        if (nextIf(TokenType.MINUS)) {
+            pushFrame(FrameKind.NEG, 0, start);
+            return null;
+        }
+        if (nextIf(TokenType.L_PAREN)) {
+            pushFrame(FrameKind.PAREN, 0, start);
+            return null;
+        }
+        if (!check(TokenType.IDENT))
+            return parseLiteral();
+
+        int id = tokens.getId(next());
+        if (!nextIf(TokenType.L_PAREN))
+            return new IdentExpr(id, start);
+
+        // 函数调用
+        var call = new CallExpr(id, start);
+        if (nextIf(TokenType.R_PAREN))
+            return call;
+        // 分析传参
+        pushFrame(FrameKind.CALL, 0, start).call = call;
+        return null;
+    }
+
+    /**
+     * 一层的子表达式分析完之后，建立这一层的节点
+     *
+     * @return 这一层的节点，函数还有参数没分析时返回 null
+     */
+    private Expr completeFrame(ExprFrame frame, Expr value) throws CompileError {
+        var outer = exprFrames.get(exprDepth - 1);
+        switch (frame.kind) {
+            case PAREN:
+                expect(TokenType.R_PAREN);
+                return value;
+            case NEG:
+                return new NegExpr(value, frame.offset);
+            case ASSIGN:
+                // 赋值之后这一层就结束了
+                outer.closed = true;
+                return new AssignExpr(frame.left, value, frame.offset);
+            case CALL:
+                frame.call.args.add(value);
+                if (nextIf(TokenType.COMMA)) {
+                    // 下一个参数
+                    exprDepth++;
+                    frame.compared = false;
+                    frame.closed = false;
+                    return null;
+                }
+                expect(TokenType.R_PAREN);
+                return frame.call;
+            default:
+                if (LEFT_BP[frame.op.ordinal()] == BP_COMPARE)
+                    outer.compared = true;
+                return new BinaryExpr(frame.op, frame.left, value, frame.offset);
+        }
+    }
+
+    private LiteralExpr parseLiteral() throws CompileError {
+        // literal -> UINT_LITERAL | DOUBLE_LITERAL | STRING_LITERAL | CHAR_LITERAL
+        // 出错时不读掉这个 token，恢复时从它开始找下一条语句
+        TokenType tt = peekType();
+        int start = offset();
+
+        if (tt == TokenType.Uint_LITERAL || tt == TokenType.CHAR_LITEREAL)
+            return new LiteralExpr(tt, tokens.getLong(next()), start);
+        else if (tt == TokenType.DOUBLE_LITERAL)
+            return new LiteralExpr(tokens.getDouble(next()), start);
+        else if (tt == TokenType.STRING_LITEREAL)
+            return new LiteralExpr(tokens.getString(next()), start);
+        throw new ExpectedTokenError(TokenType.Uint_LITERAL, peek());
+    }
+}
@@ -0,0 +1,168 @@
+package miniplc0java.analyser;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.util.Trace;
+
+import java.util.ArrayList;
+
+/**
+ * 窥孔优化
+ * <p>
+ * 函数生成完之后、交给编码之前，在函数体上反复应用下面的规则，直到没有变化：
+ * <ul>
+ * <li>跳到下一条指令的 br 删掉</li>
+ * <li>not 后面的 brfalse、brtrue 换成相反的跳转，删掉 not，所以 &lt;=、&gt;=、== 用作条件时少一条指令</li>
+ * <li>跳到 br 的跳转直接跳到最终的目标，跳到 ret 的 br 换成 ret</li>
+ * <li>只跳过一条 br 的 brfalse、brtrue 换成相反的条件跳到 br 的目标，if 里只有 break、continue 时少一次跳转</li>
+ * <li>ret 和 br 之后、没有跳转进来的指令执行不到，删掉；连续的两条 ret 只留一条</li>
+ * </ul>
+ * 条件是整数常量时代码生成已经不生成判断（见 CodeGenerator.generateCondition），这里不再处理。
+ * <p>
+ * 跳转的距离先换成目标指令的下标，删掉的指令的下标算作它后面的第一条指令，最后重新计算距离。
+ * 会改变一条指令的规则要求没有跳转进入这条指令。
+ * <p>
+ * store64 之后马上加载同一个变量需要在栈上交换地址和值，虚拟机没有这样的指令，不做处理。
+ */
+final class Peephole {
+    private Peephole() {
+    }
+
+    static void optimize(Function function) {
+        int size = function.body.size();
+        while (pass(function.body)) {
+        }
+        if (Trace.enabled(Trace.Level.DEBUG))
+            Trace.log(Trace.Level.DEBUG, "peephole " + function.getName() + ": " + size + " -> "
+                    + function.body.size() + " instructions");
+    }
+
+    /**
+     * @return 是否有变化
+     */
+    private static boolean pass(ArrayList<Instruction> body) {
+        int n = body.size();
+        // 跳转的目标下标，n 表示函数的末尾，不是跳转时为 -1
+        int[] target = new int[n];
+        boolean[] isTarget = new boolean[n + 1];
+        for (int i = 0; i < n; i++) {
+            var instruction = body.get(i);
+            if (isBranch(instruction.getOpt())) {
+                target[i] = i + 1 + (Integer) instruction.getX();
+                isTarget[target[i]] = true;
+            } else {
+                target[i] = -1;
+            }
+        }
+
+        boolean[] removed = new boolean[n];
+        boolean changed = false;
+        boolean reachable = true;
+        for (int i = 0; i < n; i++) {
+            if (isTarget[i])
+                reachable = true;
+            if (!reachable) {
+                removed[i] = true;
+                changed = true;
+                continue;
+            }
+            if (removed[i])
+                continue;
+
+            var instruction = body.get(i);
+            var opt = instruction.getOpt();
+            int next = i + 1;
+            var nextOpt = next < n ? body.get(next).getOpt() : null;
+            switch (opt) {
+                case not:
+                    if (isConditional(nextOpt) && !isTarget[next]) {
+                        body.get(next).setOpt(nextOpt == Operation.brfalse ? Operation.brtrue : Operation.brfalse);
+                        removed[i] = true;
+                        changed = true;
+                    }
+                    break;
+                case br:
+                case brfalse:
+                case brtrue: {
+                    // 跳过中间的 br，br 连成环时不改
+                    int to = target[i];
+                    for (int steps = 0; steps < n && to < n && body.get(to).getOpt() == Operation.br; steps++)
+                        to = target[to];
+                    if (to < n && body.get(to).getOpt() == Operation.br)
+                        to = target[i];
+                    if (to != target[i]) {
+                        target[i] = to;
+                        isTarget[to] = true;
+                        changed = true;
+                    }
+                    if (opt != Operation.br) {
+                        // 跳过一条 br 的条件跳转换成相反的条件直接跳到 br 的目标
+                        if (to == next + 1 && nextOpt == Operation.br && !isTarget[next]) {
+                            instruction.setOpt(opt == Operation.brfalse ? Operation.brtrue : Operation.brfalse);
+                            target[i] = target[next];
+                            isTarget[target[i]] = true;
+                            removed[next] = true;
+                            changed = true;
+                        }
+                        break;
+                    }
+                    if (to == next) {
+                        removed[i] = true;
+                        changed = true;
+                    } else if (to < n && body.get(to).getOpt() == Operation.ret) {
+                        body.set(i, new Instruction(Operation.ret));
+                        target[i] = -1;
+                        changed = true;
+                    }
+                    break;
+                }
+                case ret:
+                    // 跳到前一条 ret 的跳转改成跳到后一条
+                    if (nextOpt == Operation.ret) {
+                        removed[i] = true;
+                        changed = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            // 无条件跳转之后执行不到
+            if (!removed[i] && (body.get(i).getOpt() == Operation.br || body.get(i).getOpt() == Operation.ret))
+                reachable = false;
+        }
+        if (!changed)
+            return false;
+
+        // 删掉的指令的下标算作它后面的第一条指令
+        int[] newIndex = new int[n + 1];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            newIndex[i] = count;
+            if (!removed[i])
+                count++;
+        }
+        newIndex[n] = count;
+
+        var optimized = new ArrayList<Instruction>(count);
+        for (int i = 0; i < n; i++) {
+            if (removed[i])
+                continue;
+            var instruction = body.get(i);
+            if (target[i] >= 0)
+                instruction.setX(newIndex[target[i]] - newIndex[i] - 1);
+            optimized.add(instruction);
+        }
+        body.clear();
+        body.addAll(optimized);
+        return true;
+    }
+
+    private static boolean isBranch(Operation opt) {
+        return opt == Operation.br || isConditional(opt);
+    }
+
+    private static boolean isConditional(Operation opt) {
+        return opt == Operation.brfalse || opt == Operation.brtrue;
+    }
+}
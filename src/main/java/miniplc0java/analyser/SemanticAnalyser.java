@@ -0,0 +1,489 @@
+package miniplc0java.analyser;
+
+import miniplc0java.ast.AsExpr;
+import miniplc0java.ast.AssignExpr;
+import miniplc0java.ast.BinaryExpr;
+import miniplc0java.ast.BlockStmt;
+import miniplc0java.ast.CallExpr;
+import miniplc0java.ast.DeclStmt;
+import miniplc0java.ast.Expr;
+import miniplc0java.ast.ExprStmt;
+import miniplc0java.ast.ExprWalker;
+import miniplc0java.ast.FunctionDecl;
+import miniplc0java.ast.IdentExpr;
+import miniplc0java.ast.IfStmt;
+import miniplc0java.ast.LiteralExpr;
+import miniplc0java.ast.NegExpr;
+import miniplc0java.ast.Node;
+import miniplc0java.ast.Param;
+import miniplc0java.ast.Program;
+import miniplc0java.ast.ReturnStmt;
+import miniplc0java.ast.Stmt;
+import miniplc0java.ast.WhileStmt;
+import miniplc0java.error.CompileError;
+import miniplc0java.error.Diagnostics;
+import miniplc0java.error.ErrorCode;
+import miniplc0java.tokenizer.Interner;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.util.IntMap;
+
+import java.util.LinkedHashMap;
+
+/**
+ * 语义分析
+ * <p>
+ * 按源代码的顺序遍历语法树，建立符号表和函数表，检查类型、初始化和赋值。
+ * 查到的符号、函数和每个表达式的值都记在节点上，代码生成不再查表。
+ * 操作数都是常量的运算在这里用 {@link ConstantFolder} 折叠。
+ * 全局变量、函数名和字符串常量在全局变量表中的位置也按源代码的顺序分配。
+ * <p>
+ * 错误报在出错的节点上。恢复模式下跳过出错的语句或全局项继续分析。
+ */
+public class SemanticAnalyser extends ExprWalker {
+    /**
+     * 标识符池，和词法分析器共用
+     */
+    Interner interner;
+
+    /**
+     * _start 和 main 的编号
+     */
+    int startId;
+    int mainId;
+
+    /**
+     * 符号表
+     */
+    SymbolTable currentTable;
+
+    /**
+     * 全局函数表
+     */
+    LinkedHashMap<String, Function> funcTable = new LinkedHashMap<>();
+
+    /**
+     * 按标识符编号查找函数
+     */
+    IntMap<Function> funcIds = new IntMap<>();
+
+    /**
+     * 当前分析的函数
+     */
+    Function curFunc;
+
+    /**
+     * 是否在while中
+     */
+    boolean isWhileDomain = false;
+
+    /**
+     * 错误的收集
+     */
+    Diagnostics diagnostics;
+
+    public SemanticAnalyser(Interner interner, Diagnostics diagnostics) throws CompileError {
+        this.interner = interner;
+        this.diagnostics = diagnostics;
+        this.currentTable = new SymbolTable(interner);
+        this.startId = Interner.START;
+        this.mainId = Interner.MAIN;
+        addFunc(startId, 0);
+    }
+
+    public void analyse(Program program) throws CompileError {
+        begin(program);
+        for (var item : program.items)
+            analyseItem(item);
+        finish(program);
+    }
+
+    public void begin(Program program) {
+        program.start = funcIds.get(startId);
+    }
+
+    /**
+     * 分析一个全局项，全局项按源代码的顺序传入
+     */
+    public void analyseItem(Node item) throws CompileError {
+        try {
+            if (item instanceof FunctionDecl)
+                analyseFunction((FunctionDecl) item);
+            else
+                analyseDecl_Stmt((DeclStmt) item);
+        } catch (CompileError e) {
+            diagnostics.report(e);
+        }
+    }
+
+    /**
+     * 所有全局项分析完之后查找 main
+     */
+    public void finish(Program program) throws CompileError {
+        program.main = currentTable.get(mainId);
+        program.mainFunction = funcIds.get(mainId);
+        // 词法错误之后的部分没有分析，不知道有没有 main
+        if (program.main == null && program.end >= 0)
+            diagnostics.report(diagnostics.error(ErrorCode.NotDefined, program.end));
+    }
+
+    /**
+     * 添加一个符号
+     *
+     * @param id            标识符编号
+     * @param isInitialized 是否已赋值
+     * @param isConstant    是否是常量
+     * @param offset        声明的位置
+     * @throws CompileError 如果重复定义了则抛异常
+     */
+    private SymbolEntry addSymbolVariable(int id, boolean isConstant, boolean isInitialized, TokenType type, int offset) throws CompileError {
+        if (currentTable.isDeclared(id))
+            throw diagnostics.error(ErrorCode.DuplicateDeclaration, offset);
+
+        // 区分全局和函数内
+        // 增加局部变量数
+        curFunc.incLoc_slots();
+
+        if (currentTable.isGlobalScope())
+            return currentTable.putVariable(id, new SymbolEntry(isConstant, true, type, SymbolType.ALL));
+        else
+            return currentTable.putVariable(id, new SymbolEntry(isConstant, isInitialized, type, SymbolType.VARIABLE));
+    }
+
+    private void addSymbolParam(int id, boolean isConstant, boolean isInitialized, TokenType type, int offset) throws CompileError {
+        // 重复的参数报告之后跳过，继续分析其他参数
+        if (currentTable.isDeclared(id)) {
+            diagnostics.report(diagnostics.error(ErrorCode.DuplicateDeclaration, offset));
+            return;
+        }
+
+        // 增加参数个数
+        curFunc.incParam_slots();
+
+        currentTable.putParam(id, new SymbolEntry(isConstant, isInitialized, type, SymbolType.PARAM));
+    }
+
+    private SymbolEntry addGlobalString(String value) {
+        return currentTable.putGlobalString(new SymbolEntry(false, false, TokenType.STRING_LITEREAL, SymbolType.GLOBAL_STRING, value));
+    }
+
+    /**
+     * 添加一个函数
+     *
+     * @param id     函数名的编号
+     * @param offset 函数定义的位置
+     * @throws CompileError 如果重复定义了则抛异常
+     */
+    private void addFunc(int id, int offset) throws CompileError {
+        if (funcIds.get(id) != null)
+            throw diagnostics.error(ErrorCode.DuplicateFunction, offset);
+        else {
+            String name = interner.name(id);
+            var func = new Function(name);
+            // 将函数名加入变量表
+            currentTable.putGlobalFunc(id, new SymbolEntry(false, false, TokenType.FUNCTION_KW, SymbolType.Function, name));
+            // 设置当前分析的函数
+            curFunc = func;
+            // 设置其在全局变量表中的位置
+            curFunc.setOrder(currentTable.get(id).order);
+            // 函数按加入的顺序输出
+            curFunc.setIndex(funcTable.size());
+            funcTable.put(name, func);
+            funcIds.put(id, func);
+        }
+    }
+
+    /**
+     * 进入一个新的域
+     */
+    private void newDomain() {
+        currentTable.enterScope();
+    }
+
+    /**
+     * 退出域进入原本域
+     */
+    private void exitDomain() {
+        currentTable.exitScope();
+    }
+
+    private void analyseFunction(FunctionDecl function) throws CompileError {
+        addFunc(function.id, function.offset);
+        function.func = curFunc;
+
+        // 参数在一个新的域里，函数体不再新建域
+        newDomain();
+        for (Param param : function.params)
+            addSymbolParam(param.id, param.constant, true, param.type, param.offset);
+
+        // 设置类型
+        curFunc.setRet_slots(function.returnType);
+
+        analyseBlock_Stmt(function.body);
+        exitDomain();
+
+        curFunc = funcIds.get(startId);
+    }
+
+    private void analyseStmt(Stmt stmt) throws CompileError {
+        switch (stmt.kind) {
+            case BLOCK:
+                newDomain();
+                analyseBlock_Stmt((BlockStmt) stmt);
+                exitDomain();
+                break;
+            case EXPR:
+                walk(((ExprStmt) stmt).expr);
+                break;
+            case DECL:
+                analyseDecl_Stmt((DeclStmt) stmt);
+                break;
+            case IF:
+                analyseIf_Stmt((IfStmt) stmt);
+                break;
+            case WHILE:
+                analyseWhile_Stmt((WhileStmt) stmt);
+                break;
+            case BREAK:
+            case CONTINUE:
+                if (!isWhileDomain)
+                    throw diagnostics.error(ErrorCode.NotWhileDomain, stmt.offset);
+                break;
+            case RETURN:
+                analyseReturn_Stmt((ReturnStmt) stmt);
+                break;
+            default:
+                // empty_stmt
+                break;
+        }
+    }
+
+    private void analyseBlock_Stmt(BlockStmt block) throws CompileError {
+        for (Stmt stmt : block.stmts) {
+            try {
+                analyseStmt(stmt);
+            } catch (CompileError e) {
+                diagnostics.report(e);
+            }
+        }
+    }
+
+    private void analyseDecl_Stmt(DeclStmt decl) throws CompileError {
+        // 变量在初值之前加入符号表
+        decl.entry = addSymbolVariable(decl.id, decl.constant, decl.constant, decl.type, decl.offset);
+        if (decl.init == null)
+            return;
+
+        walk(decl.init);
+        if (decl.init.result.getType() != decl.type)
+            throw diagnostics.error(ErrorCode.InvalidAssignment, decl.offset);
+        // 设置变量初始化
+        decl.entry.setInitialized(true);
+    }
+
+    private void analyseIf_Stmt(IfStmt stmt) throws CompileError {
+        walk(stmt.condition);
+
+        newDomain();
+        analyseBlock_Stmt(stmt.then);
+        exitDomain();
+
+        if (stmt.otherwise instanceof IfStmt) {
+            analyseIf_Stmt((IfStmt) stmt.otherwise);
+        } else if (stmt.otherwise != null) {
+            newDomain();
+            analyseBlock_Stmt((BlockStmt) stmt.otherwise);
+            exitDomain();
+        }
+    }
+
+    private void analyseWhile_Stmt(WhileStmt stmt) throws CompileError {
+        isWhileDomain = true;
+        try {
+            walk(stmt.condition);
+
+            newDomain();
+            analyseBlock_Stmt(stmt.body);
+            exitDomain();
+        } finally {
+            isWhileDomain = false;
+        }
+    }
+
+    private void analyseReturn_Stmt(ReturnStmt stmt) throws CompileError {
+        if (stmt.value != null) {
+            walk(stmt.value);
+            // 检查返回值类型
+            if (stmt.value.result.getType() != curFunc.ret_type)
+                throw diagnostics.error(ErrorCode.OtherReturnType, stmt.offset);
+        } else if (curFunc.ret_type != TokenType.VOID_KW)
+            throw diagnostics.error(ErrorCode.OtherReturnType, stmt.offset);
+    }
+
+    @Override
+    protected void enter(Expr node) throws CompileError {
+        switch (node.kind) {
+            case LITERAL:
+                analyseLiteral((LiteralExpr) node);
+                break;
+            case IDENT: {
+                var symbol = currentTable.get(((IdentExpr) node).id);
+                if (symbol == null)
+                    throw diagnostics.error(ErrorCode.NotDefined, node.offset);
+                node.result = ExprResult.of(symbol);
+                break;
+            }
+            case CALL: {
+                // 标准库函数优先
+                var call = (CallExpr) node;
+                if (!Interner.isStdFunc(call.id)) {
+                    call.func = funcIds.get(call.id);
+                    if (call.func == null)
+                        throw diagnostics.error(ErrorCode.FuncNotExist, node.offset);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    @Override
+    protected boolean beforeChild(Expr node, int index) throws CompileError {
+        if (node.kind == Expr.Kind.ASSIGN && index == 1) {
+            // 分析右边之前检查左边能否赋值
+            var target = ((AssignExpr) node).target.result;
+            if (target.isConstant())
+                throw diagnostics.error(ErrorCode.ConstantNeedValue, node.offset);
+            checkIfNotTemp(target, node.offset);
+        }
+        return true;
+    }
+
+    @Override
+    protected void exit(Expr node) throws CompileError {
+        switch (node.kind) {
+            case CALL: {
+                var call = (CallExpr) node;
+                node.result = call.func == null ? stdFuncResult(call.id) : funcResult(call.func);
+                break;
+            }
+            case NEG: {
+                var value = ((NegExpr) node).operand.result;
+                if (!value.isInitialized())
+                    throw diagnostics.error(ErrorCode.NotInitialized, node.offset);
+                node.result = value;
+                node.constant = ConstantFolder.fold(node);
+                break;
+            }
+            case AS: {
+                var as = (AsExpr) node;
+                var value = as.operand.result;
+                if (!value.isInitialized()
+                        || !(value.getType() == TokenType.INT_KW && as.type == TokenType.DOUBLE_KW
+                        || value.getType() == TokenType.DOUBLE_KW && as.type == TokenType.INT_KW))
+                    throw diagnostics.error(ErrorCode.InvalidAs, node.offset);
+                node.result = ExprResult.of(as.type);
+                node.constant = ConstantFolder.fold(node);
+                break;
+            }
+            case BINARY: {
+                var binary = (BinaryExpr) node;
+                // 检查类型和初始化
+                checkIdentType(binary.right.result, binary.left.result, node.offset);
+                if (binary.isComparison())
+                    node.result = ExprResult.of(TokenType.BOOLEAN_KW, false);
+                else
+                    node.result = ExprResult.of(binary.left.result.getType());
+                node.constant = ConstantFolder.fold(node);
+                break;
+            }
+            case ASSIGN: {
+                var assign = (AssignExpr) node;
+                checkIdentInitialized(assign.value.result, node.offset);
+                // 赋值变量
+                assign.target.result.getSymbol().setInitialized(true);
+                node.result = ExprResult.of(TokenType.VOID_KW, false);
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private void analyseLiteral(LiteralExpr literal) throws CompileError {
+        switch (literal.tokenType) {
+            case DOUBLE_LITERAL:
+                literal.result = ExprResult.of(TokenType.DOUBLE_KW);
+                literal.constant = literal;
+                break;
+            case STRING_LITEREAL:
+                literal.stringEntry = addGlobalString(literal.stringValue);
+                literal.result = ExprResult.of(TokenType.STRING_KW);
+                break;
+            default:
+                // 整数和字符
+                literal.result = ExprResult.of(TokenType.INT_KW);
+                literal.constant = literal;
+                break;
+        }
+    }
+
+    private ExprResult funcResult(Function func) {
+        // 函数返回，void 视为未初始化
+        return ExprResult.of(func.ret_type, func.ret_type != TokenType.VOID_KW);
+    }
+
+    /**
+     * 标准库函数的返回值
+     *
+     * @param id 函数名的编号
+     */
+    private ExprResult stdFuncResult(int id) {
+        switch (id) {
+            case Interner.GETINT:
+            case Interner.GETCHAR:
+                return ExprResult.of(TokenType.INT_KW);
+            case Interner.GETDOUBLE:
+                return ExprResult.of(TokenType.DOUBLE_KW);
+            default:
+                return ExprResult.of(TokenType.VOID_KW, false);
+        }
+    }
+
+    /**
+     * 检查是否是临时变量
+     *
+     * @param expr
+     * @param offset 报错的位置
+     */
+    private void checkIfNotTemp(ExprResult expr, int offset) throws CompileError {
+        if (expr.isTemporary())
+            throw diagnostics.error(ErrorCode.AssignToTemporary, offset);
+    }
+
+    /**
+     * 检查比较两边的类型
+     *
+     * @param exprA
+     * @param exprB
+     * @param offset 报错的位置
+     */
+    private void checkIdentType(ExprResult exprA, ExprResult exprB, int offset) throws CompileError {
+        checkIdentInitialized(exprA, offset);
+        checkIdentInitialized(exprB, offset);
+        if (exprA.getType() != exprB.getType()) {
+            throw diagnostics.error(ErrorCode.InvalidCalculation, offset);
+        }
+    }
+
+    /**
+     * 检查变量初始化
+     *
+     * @param expr   检查是否赋值
+     * @param offset 报错的位置
+     */
+    private void checkIdentInitialized(ExprResult expr, int offset) throws CompileError {
+        if (!expr.isInitialized())
+            throw diagnostics.error(ErrorCode.NotInitialized, offset);
+    }
+}
@@ -13,6 +13,8 @@ public class SymbolEntry {
     int order; // 在全局或函数中的顺序
     int stackOffset;
     String value; // 专门存储string的值
+    ExprResult result; // 作为表达式的值，见 ExprResult.of
+    long initialValue; // 全局变量在编译时算出的初值，double 存它的位，写进全局变量表
 
     /**
      * @param isConstant
@@ -39,22 +41,6 @@ public class SymbolEntry {
         this.value = stringValue;
     }
 
-    // 第一种种临时变量储存方式
-    public SymbolEntry(boolean isInitialized, TokenType type) {
-        // 初始化的，包括int,string,double
-        this.isInitialized = isInitialized;
-        this.type = type;
-        this.symbolType = SymbolType.TEMPORARY;
-    }
-
-    // 第二种临时变量储存方式
-    public SymbolEntry(TokenType type) {
-        // 未初始化的，包括void,boolean
-        this.isInitialized = false;
-        this.type = type;
-        this.symbolType = SymbolType.TEMPORARY;
-    }
-
     public SymbolType getSymbolType() {
         return symbolType;
     }
@@ -63,6 +49,10 @@ public class SymbolEntry {
         return value;
     }
 
+    public long getInitialValue() {
+        return initialValue;
+    }
+
     @Override
     public String toString() {
         return "SymbolEntry{" +
@@ -1,118 +1,172 @@
 package miniplc0java.analyser;
 
-import miniplc0java.error.CompileError;
-import miniplc0java.error.ErrorCode;
-import miniplc0java.util.Pos;
+import miniplc0java.tokenizer.Interner;
 
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.Map;
 
+/**
+ * 符号表
+ * <p>
+ * 整个文件只用一个表。按标识符编号直接取到当前可见的符号，被遮住的同名符号记在撤销日志里，
+ * 退出域时把这个域加入的符号逐个撤销。查找和加入都和嵌套深度无关，进入新的域也不分配对象。
+ * <p>
+ * 表本身不报错，重复定义和未定义由调用者按出错的位置报告。
+ */
 public class SymbolTable {
-    // father table
-    SymbolTable fatherTable = null;
+    // 标识符池，符号都用编号查找
+    Interner interner;
 
-    // current table
+    // 按标识符编号取当前可见的符号和它所在域的深度
+    SymbolEntry[] visible = new SymbolEntry[256];
+    int[] visibleDepth = new int[256];
+
+    // 撤销日志：加入的符号的编号，以及它遮住的符号和深度
+    int[] undoIds = new int[64];
+    SymbolEntry[] undoEntries = new SymbolEntry[64];
+    int[] undoDepths = new int[64];
+    int undoSize = 0;
+
+    // 每一层域开始时的日志长度和变量顺序
+    int[] scopeMarks = new int[16];
+    int[] scopeOrders = new int[16];
+
+    // 当前域的深度，0 是全局
+    int depth = 0;
+
+    // 全局符号按加入顺序保存，输出时使用
     LinkedHashMap<String, SymbolEntry> symbolTable = new LinkedHashMap<>();
 
     // 参数的顺序
     int paramOrder = 1;
 
-    // 变量的顺序
+    // 全局变量、函数和字符串的顺序
+    int globalOrder = 0;
+
+    // 字符串池：相同的字符串字面量只占一个全局变量
+    HashMap<String, SymbolEntry> strings = new HashMap<>();
+
+    // 当前域里局部变量的顺序
     int variableOrder = 0;
 
-    // 变量表大小
-    int size;
+    public SymbolTable(Interner interner) {
+        this.interner = interner;
+    }
 
-    // init 设置fatherTable为null
-    public SymbolTable() {
-        fatherTable = null;
+    /**
+     * 进入一个新的域，函数的参数和函数体在第一层
+     */
+    public void enterScope() {
+        if (depth == scopeMarks.length) {
+            scopeMarks = Arrays.copyOf(scopeMarks, depth * 2);
+            scopeOrders = Arrays.copyOf(scopeOrders, depth * 2);
+        }
+        scopeMarks[depth] = undoSize;
+        scopeOrders[depth] = variableOrder;
+        depth++;
+        // 嵌套的域接着外层的变量顺序继续编号
+        if (depth == 1) {
+            variableOrder = 0;
+            paramOrder = 1;
+        }
     }
 
-    // init 设置fatherTable指向父域
-    public SymbolTable(SymbolTable currentTable) {
-        fatherTable = currentTable;
-        if (currentTable.fatherTable != null)
-            variableOrder = currentTable.variableOrder;
+    /**
+     * 退出当前的域，撤销这个域加入的所有符号
+     */
+    public void exitScope() {
+        depth--;
+        int mark = scopeMarks[depth];
+        while (undoSize > mark) {
+            undoSize--;
+            int id = undoIds[undoSize];
+            visible[id] = undoEntries[undoSize];
+            visibleDepth[id] = undoDepths[undoSize];
+            undoEntries[undoSize] = null;
+        }
+        variableOrder = scopeOrders[depth];
+    }
+
+    /**
+     * @return 当前是否在全局
+     */
+    public boolean isGlobalScope() {
+        return depth == 0;
     }
 
     // 添加参数
-    public void putParam(String name, SymbolEntry entry) throws CompileError {
-        checkDuplicateDeclaration(name);
+    public void putParam(int id, SymbolEntry entry) {
         entry.order = paramOrder++;
-        symbolTable.put(name, entry);
+        put(id, entry);
     }
 
     // 添加变量
-    public SymbolEntry putVariable(String name, SymbolEntry entry) throws CompileError {
-        SymbolTable find = this;
-        checkDuplicateDeclaration(name);
-        entry.order = variableOrder++;
-        symbolTable.put(name, entry);
+    public SymbolEntry putVariable(int id, SymbolEntry entry) {
+        entry.order = depth == 0 ? globalOrder++ : variableOrder++;
+        put(id, entry);
         return entry;
     }
 
-    // 添加全局string
-    public SymbolEntry putGlobalString(SymbolEntry entry) throws CompileError {
-        SymbolTable find = this;
-        while (find.fatherTable != null) {
-            find = find.fatherTable;
-        }
-        entry.order = find.variableOrder++;
-        find.getSymbolTable().put(entry.getValue() + entry.order, entry);
+    /**
+     * 添加全局string，已经有相同的字符串时返回原来的
+     * <p>
+     * 虚拟机按全局变量的编号输出整个字符串，不能指向字符串的中间，所以后缀相同的字符串不能共用。
+     */
+    public SymbolEntry putGlobalString(SymbolEntry entry) {
+        var pooled = strings.putIfAbsent(entry.getValue(), entry);
+        if (pooled != null)
+            return pooled;
+        entry.order = globalOrder++;
+        symbolTable.put(entry.getValue() + entry.order, entry);
         return entry;
     }
 
     // 添加全局函数
-    public SymbolEntry putGlobalFunc(String name, SymbolEntry entry) throws CompileError {
-        SymbolTable find = this;
-        while (find.fatherTable != null) {
-            find = find.fatherTable;
-        }
-        entry.order = find.variableOrder++;
-        find.getSymbolTable().put(name, entry);
+    public SymbolEntry putGlobalFunc(int id, SymbolEntry entry) {
+        entry.order = globalOrder++;
+        put(id, entry);
         return entry;
     }
 
-    private void checkDuplicateDeclaration(String name) throws CompileError {
-        if (symbolTable.get(name) != null)
-            throw new CompileError() {
-                @Override
-                public ErrorCode getErr() {
-                    return ErrorCode.DuplicateDeclaration;
-                }
-
-                @Override
-                public Pos getPos() {
-                    return null;
-                }
-            };
+    private void put(int id, SymbolEntry entry) {
+        if (id >= visible.length) {
+            int length = Math.max(visible.length * 2, id + 1);
+            visible = Arrays.copyOf(visible, length);
+            visibleDepth = Arrays.copyOf(visibleDepth, length);
+        }
+        if (depth > 0) {
+            // 记下被遮住的符号，退出域时恢复
+            if (undoSize == undoIds.length) {
+                undoIds = Arrays.copyOf(undoIds, undoSize * 2);
+                undoEntries = Arrays.copyOf(undoEntries, undoSize * 2);
+                undoDepths = Arrays.copyOf(undoDepths, undoSize * 2);
+            }
+            undoIds[undoSize] = id;
+            undoEntries[undoSize] = visible[id];
+            undoDepths[undoSize] = visibleDepth[id];
+            undoSize++;
+        } else {
+            symbolTable.put(interner.name(id), entry);
+        }
+        visible[id] = entry;
+        visibleDepth[id] = depth;
     }
 
-    // 查找表
-    public SymbolEntry get(String name) throws CompileError {
-        SymbolTable find = this;
-        while (find.symbolTable.get(name) == null && find.fatherTable != null) {
-            find = find.fatherTable;
-        }
-        if (find.symbolTable.get(name) == null)
-            throw new CompileError() {
-                @Override
-                public ErrorCode getErr() {
-                    return ErrorCode.NotDefined;
-                }
-
-                @Override
-                public Pos getPos() {
-                    return null;
-                }
-            };
-        return find.symbolTable.get(name);
+    /**
+     * @return 当前域里是否已经定义了这个标识符
+     */
+    public boolean isDeclared(int id) {
+        return id < visible.length && visible[id] != null && visibleDepth[id] == depth;
     }
 
-    // 获取大小
-    public int getSize() {
-        return size;
+    /**
+     * 查找表
+     *
+     * @return 当前可见的符号，没有定义时返回 null
+     */
+    public SymbolEntry get(int id) {
+        return id < visible.length ? visible[id] : null;
     }
 
     public LinkedHashMap<String, SymbolEntry> getSymbolTable() {
@@ -1,19 +1,44 @@
 package miniplc0java.analyser;
 
+import miniplc0java.instruction.Instruction;
+
+import java.util.ArrayList;
+
 public class WhileBlock {
-    int startOffset;
-    int endOffset;
+    // break 和 continue 的 br 的位置，循环生成完之后才知道跳到哪里
+    ArrayList<Integer> breaks = new ArrayList<>();
+    ArrayList<Integer> continues = new ArrayList<>();
+
+    /**
+     * @param offset 跳出循环的 br 的位置
+     */
+    public void addBreak(int offset) {
+        breaks.add(offset);
+    }
+
+    /**
+     * @param offset 跳到下一次循环的 br 的位置
+     */
+    public void addContinue(int offset) {
+        continues.add(offset);
+    }
 
-    WhileBlock(int startOffset,int endOffset) {
-        this.startOffset = startOffset;
-        this.endOffset = endOffset;
+    /**
+     * 所有 break 跳到循环的出口 end
+     */
+    public void patchBreaks(ArrayList<Instruction> body, int end) {
+        patch(breaks, body, end);
     }
 
-    public int getStartOffset(int current) {
-        return startOffset - current;
+    /**
+     * 所有 continue 跳到循环的条件 test
+     */
+    public void patchContinues(ArrayList<Instruction> body, int test) {
+        patch(continues, body, test);
     }
 
-    public int getEndOffset(int current) {
-        return endOffset - current - 1;
+    private static void patch(ArrayList<Integer> offsets, ArrayList<Instruction> body, int target) {
+        for (int offset : offsets)
+            body.get(offset).setX(target - offset - 1);
     }
 }
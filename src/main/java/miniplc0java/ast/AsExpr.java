@@ -0,0 +1,27 @@
+package miniplc0java.ast;
+
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * expr 'as' ty
+ */
+public class AsExpr extends Expr {
+    public final Expr operand;
+    public final TokenType type;
+
+    public AsExpr(Expr operand, TokenType type, int offset) {
+        super(Kind.AS, offset);
+        this.operand = operand;
+        this.type = type;
+    }
+
+    @Override
+    public int childCount() {
+        return 1;
+    }
+
+    @Override
+    public Expr child(int index) {
+        return operand;
+    }
+}
@@ -0,0 +1,25 @@
+package miniplc0java.ast;
+
+/**
+ * l_expr '=' expr
+ */
+public class AssignExpr extends Expr {
+    public final Expr target;
+    public final Expr value;
+
+    public AssignExpr(Expr target, Expr value, int offset) {
+        super(Kind.ASSIGN, offset);
+        this.target = target;
+        this.value = value;
+    }
+
+    @Override
+    public int childCount() {
+        return 2;
+    }
+
+    @Override
+    public Expr child(int index) {
+        return index == 0 ? target : value;
+    }
+}
@@ -0,0 +1,46 @@
+package miniplc0java.ast;
+
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * expr binary_op expr
+ */
+public class BinaryExpr extends Expr {
+    public final TokenType op;
+    public final Expr left;
+    public final Expr right;
+
+    public BinaryExpr(TokenType op, Expr left, Expr right, int offset) {
+        super(Kind.BINARY, offset);
+        this.op = op;
+        this.left = left;
+        this.right = right;
+    }
+
+    /**
+     * @return 是否是比较运算
+     */
+    public boolean isComparison() {
+        switch (op) {
+            case LT:
+            case GT:
+            case LE:
+            case GE:
+            case EQ:
+            case NEQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public int childCount() {
+        return 2;
+    }
+
+    @Override
+    public Expr child(int index) {
+        return index == 0 ? left : right;
+    }
+}
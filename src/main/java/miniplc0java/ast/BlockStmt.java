@@ -0,0 +1,14 @@
+package miniplc0java.ast;
+
+import java.util.ArrayList;
+
+/**
+ * block_stmt -> '{' stmt* '}'
+ */
+public class BlockStmt extends Stmt {
+    public final ArrayList<Stmt> stmts = new ArrayList<>();
+
+    public BlockStmt(int offset) {
+        super(Kind.BLOCK, offset);
+    }
+}
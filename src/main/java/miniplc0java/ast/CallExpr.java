@@ -0,0 +1,32 @@
+package miniplc0java.ast;
+
+import miniplc0java.analyser.Function;
+
+import java.util.ArrayList;
+
+/**
+ * IDENT '(' (expr (',' expr)*)? ')'
+ */
+public class CallExpr extends Expr {
+    // 函数名的编号
+    public final int id;
+    public final ArrayList<Expr> args = new ArrayList<>();
+
+    // 语义分析的结果，标准库函数为 null
+    public Function func;
+
+    public CallExpr(int id, int offset) {
+        super(Kind.CALL, offset);
+        this.id = id;
+    }
+
+    @Override
+    public int childCount() {
+        return args.size();
+    }
+
+    @Override
+    public Expr child(int index) {
+        return args.get(index);
+    }
+}
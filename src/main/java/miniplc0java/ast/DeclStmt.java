@@ -0,0 +1,28 @@
+package miniplc0java.ast;
+
+import miniplc0java.analyser.SymbolEntry;
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * let_decl_stmt -> 'let' IDENT ':' ty ('=' expr)? ';'
+ * <p>
+ * const_decl_stmt -> 'const' IDENT ':' ty '=' expr ';'
+ */
+public class DeclStmt extends Stmt {
+    public final boolean constant;
+    public final int id;
+    public final TokenType type;
+    // 没有初值时为 null
+    public final Expr init;
+
+    // 语义分析的结果
+    public SymbolEntry entry;
+
+    public DeclStmt(boolean constant, int id, TokenType type, Expr init, int offset) {
+        super(Kind.DECL, offset);
+        this.constant = constant;
+        this.id = id;
+        this.type = type;
+        this.init = init;
+    }
+}
@@ -0,0 +1,41 @@
+package miniplc0java.ast;
+
+import miniplc0java.analyser.ExprResult;
+
+/**
+ * 表达式
+ * <p>
+ * 括号不单独成为节点，语法分析直接返回括号里的表达式
+ */
+public abstract class Expr extends Node {
+    public enum Kind {
+        LITERAL, IDENT, CALL, NEG, AS, BINARY, ASSIGN
+    }
+
+    public final Kind kind;
+
+    // 语义分析得到的值，类型和是否初始化都在这里
+    public ExprResult result;
+
+    // 常量折叠的结果：整数和浮点常量，字面量就是它自己；不是常量时为 null
+    public LiteralExpr constant;
+
+    protected Expr(Kind kind, int offset) {
+        super(offset);
+        this.kind = kind;
+    }
+
+    /**
+     * @return 子表达式的个数
+     */
+    public int childCount() {
+        return 0;
+    }
+
+    /**
+     * @param index 按求值顺序从 0 开始的下标
+     */
+    public Expr child(int index) {
+        throw new IndexOutOfBoundsException(index);
+    }
+}
@@ -0,0 +1,13 @@
+package miniplc0java.ast;
+
+/**
+ * expr_stmt -> expr
+ */
+public class ExprStmt extends Stmt {
+    public final Expr expr;
+
+    public ExprStmt(Expr expr, int offset) {
+        super(Kind.EXPR, offset);
+        this.expr = expr;
+    }
+}
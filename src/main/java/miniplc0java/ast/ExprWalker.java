@@ -0,0 +1,67 @@
+package miniplc0java.ast;
+
+import miniplc0java.error.CompileError;
+
+import java.util.Arrays;
+
+/**
+ * 不用递归地按求值顺序遍历表达式
+ * <p>
+ * 表达式可以嵌套得很深，所以语义分析和代码生成都继承这个类，用自己的栈代替调用栈。
+ * 每个节点先调用 enter，每个子表达式之前调用 beforeChild，子表达式都遍历完之后调用 exit。
+ * 回调里可以再调用 walk 遍历别的子树。
+ */
+public abstract class ExprWalker {
+    private Expr[] nodes = new Expr[64];
+    private int[] indices = new int[64];
+    private int depth = 0;
+
+    protected void walk(Expr root) throws CompileError {
+        int base = depth;
+        try {
+            push(root);
+            while (depth > base) {
+                int top = depth - 1;
+                var node = nodes[top];
+                int index = indices[top];
+                if (index < node.childCount()) {
+                    indices[top] = index + 1;
+                    if (beforeChild(node, index))
+                        push(node.child(index));
+                } else {
+                    nodes[--depth] = null;
+                    exit(node);
+                }
+            }
+        } finally {
+            // 出错时丢掉没遍历完的部分
+            while (depth > base)
+                nodes[--depth] = null;
+        }
+    }
+
+    private void push(Expr node) throws CompileError {
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            indices = Arrays.copyOf(indices, depth * 2);
+        }
+        nodes[depth] = node;
+        indices[depth] = 0;
+        depth++;
+        enter(node);
+    }
+
+    protected void enter(Expr node) throws CompileError {
+    }
+
+    /**
+     * @param index 子表达式的下标
+     * @return false 表示跳过这个子表达式
+     */
+    protected boolean beforeChild(Expr node, int index) throws CompileError {
+        return true;
+    }
+
+    protected void exit(Expr node) throws CompileError {
+    }
+}
@@ -0,0 +1,25 @@
+package miniplc0java.ast;
+
+import miniplc0java.analyser.Function;
+import miniplc0java.tokenizer.TokenType;
+
+import java.util.ArrayList;
+
+/**
+ * function -> 'fn' IDENT '(' function_param_list? ')' '->' ty block_stmt
+ */
+public class FunctionDecl extends Node {
+    // 函数名的编号
+    public final int id;
+    public final ArrayList<Param> params = new ArrayList<>();
+    public TokenType returnType;
+    public BlockStmt body;
+
+    // 语义分析的结果
+    public Function func;
+
+    public FunctionDecl(int id, int offset) {
+        super(offset);
+        this.id = id;
+    }
+}
@@ -0,0 +1,13 @@
+package miniplc0java.ast;
+
+/**
+ * IDENT，语义分析后 result 指向查到的符号
+ */
+public class IdentExpr extends Expr {
+    public final int id;
+
+    public IdentExpr(int id, int offset) {
+        super(Kind.IDENT, offset);
+        this.id = id;
+    }
+}
@@ -0,0 +1,18 @@
+package miniplc0java.ast;
+
+/**
+ * if_stmt -> 'if' expr block_stmt ('else' 'if' expr block_stmt)* ('else' block_stmt)?
+ */
+public class IfStmt extends Stmt {
+    public final Expr condition;
+    public final BlockStmt then;
+    // else 后面的 IfStmt 或 BlockStmt，没有时为 null
+    public final Stmt otherwise;
+
+    public IfStmt(Expr condition, BlockStmt then, Stmt otherwise, int offset) {
+        super(Kind.IF, offset);
+        this.condition = condition;
+        this.then = then;
+        this.otherwise = otherwise;
+    }
+}
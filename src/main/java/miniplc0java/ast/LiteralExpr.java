@@ -0,0 +1,36 @@
+package miniplc0java.ast;
+
+import miniplc0java.analyser.SymbolEntry;
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * literal -> UINT_LITERAL | DOUBLE_LITERAL | STRING_LITERAL | CHAR_LITERAL
+ */
+public class LiteralExpr extends Expr {
+    // 字面量 token 的类型
+    public final TokenType tokenType;
+    public long longValue;
+    public double doubleValue;
+    public String stringValue;
+
+    // 语义分析的结果：字符串常量在全局变量表中的位置
+    public SymbolEntry stringEntry;
+
+    public LiteralExpr(TokenType tokenType, long value, int offset) {
+        super(Kind.LITERAL, offset);
+        this.tokenType = tokenType;
+        this.longValue = value;
+    }
+
+    public LiteralExpr(double value, int offset) {
+        super(Kind.LITERAL, offset);
+        this.tokenType = TokenType.DOUBLE_LITERAL;
+        this.doubleValue = value;
+    }
+
+    public LiteralExpr(String value, int offset) {
+        super(Kind.LITERAL, offset);
+        this.tokenType = TokenType.STRING_LITEREAL;
+        this.stringValue = value;
+    }
+}
@@ -0,0 +1,23 @@
+package miniplc0java.ast;
+
+/**
+ * '-' expr，负号作用于后面的整个表达式
+ */
+public class NegExpr extends Expr {
+    public final Expr operand;
+
+    public NegExpr(Expr operand, int offset) {
+        super(Kind.NEG, offset);
+        this.operand = operand;
+    }
+
+    @Override
+    public int childCount() {
+        return 1;
+    }
+
+    @Override
+    public Expr child(int index) {
+        return operand;
+    }
+}
@@ -0,0 +1,13 @@
+package miniplc0java.ast;
+
+/**
+ * 语法树节点
+ */
+public abstract class Node {
+    // 在源代码中的偏移，报错时使用：二元运算、赋值和 as 是运算符的位置，其他节点是第一个 token
+    public final int offset;
+
+    protected Node(int offset) {
+        this.offset = offset;
+    }
+}
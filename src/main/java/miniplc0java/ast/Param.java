@@ -0,0 +1,19 @@
+package miniplc0java.ast;
+
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * function_param -> 'const'? IDENT ':' ty
+ */
+public class Param extends Node {
+    public final boolean constant;
+    public final int id;
+    public final TokenType type;
+
+    public Param(boolean constant, int id, TokenType type, int offset) {
+        super(offset);
+        this.constant = constant;
+        this.id = id;
+        this.type = type;
+    }
+}
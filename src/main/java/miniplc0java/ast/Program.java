@@ -0,0 +1,26 @@
+package miniplc0java.ast;
+
+import miniplc0java.analyser.Function;
+import miniplc0java.analyser.SymbolEntry;
+
+import java.util.ArrayList;
+
+/**
+ * 整个文件，全局变量声明和函数按出现的顺序排列
+ */
+public class Program extends Node {
+    // DeclStmt 或 FunctionDecl
+    public final ArrayList<Node> items = new ArrayList<>();
+
+    // 语义分析的结果：_start 函数、main 的符号和 main 函数，main 不是函数时 mainFunction 为 null
+    public Function start;
+    public SymbolEntry main;
+    public Function mainFunction;
+
+    // 分析停下的位置，找不到 main 时在这里报错；遇到词法错误时为 -1
+    public int end;
+
+    public Program() {
+        super(0);
+    }
+}
@@ -0,0 +1,14 @@
+package miniplc0java.ast;
+
+/**
+ * return_stmt -> 'return' expr? ';'
+ */
+public class ReturnStmt extends Stmt {
+    // 没有返回值时为 null
+    public final Expr value;
+
+    public ReturnStmt(Expr value, int offset) {
+        super(Kind.RETURN, offset);
+        this.value = value;
+    }
+}
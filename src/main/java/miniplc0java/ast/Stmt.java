@@ -0,0 +1,17 @@
+package miniplc0java.ast;
+
+/**
+ * 语句，break、continue 和空语句没有别的内容，直接用这个类
+ */
+public class Stmt extends Node {
+    public enum Kind {
+        BLOCK, EXPR, DECL, IF, WHILE, BREAK, CONTINUE, RETURN, EMPTY
+    }
+
+    public final Kind kind;
+
+    public Stmt(Kind kind, int offset) {
+        super(offset);
+        this.kind = kind;
+    }
+}
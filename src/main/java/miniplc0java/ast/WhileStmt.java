@@ -0,0 +1,15 @@
+package miniplc0java.ast;
+
+/**
+ * while_stmt -> 'while' expr block_stmt
+ */
+public class WhileStmt extends Stmt {
+    public final Expr condition;
+    public final BlockStmt body;
+
+    public WhileStmt(Expr condition, BlockStmt body, int offset) {
+        super(Kind.WHILE, offset);
+        this.condition = condition;
+        this.body = body;
+    }
+}
@@ -6,6 +6,13 @@ public abstract class CompileError extends Exception {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * 不记录调用栈，出错的位置由 getPos 给出，构造一个错误只是分配一个对象
+     */
+    protected CompileError() {
+        super(null, null, false, false);
+    }
+
     public abstract ErrorCode getErr();
 
     public abstract Pos getPos();
@@ -0,0 +1,64 @@
+package miniplc0java.error;
+
+import miniplc0java.util.Pos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * 编译错误的收集
+ * <p>
+ * 默认遇到第一个错误就抛出。恢复模式下只把错误记下来，语法分析和语义分析跳过出错的语句继续，
+ * 一次编译报告所有错误；词法错误之后没有 token，分析到那里为止。
+ */
+public class Diagnostics {
+    // 把偏移换算成行号和列号
+    private final IntFunction<Pos> positions;
+
+    private final boolean recover;
+
+    private final ArrayList<CompileError> errors = new ArrayList<>();
+
+    /**
+     * @param positions 把偏移换算成行号和列号
+     * @param recover   是否在出错之后继续分析
+     */
+    public Diagnostics(IntFunction<Pos> positions, boolean recover) {
+        this.positions = positions;
+        this.recover = recover;
+    }
+
+    public boolean isRecovering() {
+        return recover;
+    }
+
+    /**
+     * 构造一个位于源代码 offset 处的分析错误
+     */
+    public AnalyzeError error(ErrorCode code, int offset) {
+        return new AnalyzeError(code, positions.apply(offset));
+    }
+
+    /**
+     * 报告一个错误，不在恢复模式时直接抛出
+     */
+    public void report(CompileError error) throws CompileError {
+        if (!recover)
+            throw error;
+        // 词法错误每次读到都会抛出同一个对象，只记一次
+        if (errors.isEmpty() || errors.get(errors.size() - 1) != error)
+            errors.add(error);
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    /**
+     * @return 按报告顺序排列的错误
+     */
+    public List<CompileError> getErrors() {
+        return errors;
+    }
+}
@@ -0,0 +1,87 @@
+package miniplc0java.tokenizer;
+
+/**
+ * 字符分类表
+ * <p>
+ * 按码点分类，ASCII 字符直接查 128 项的表，其他字符再调用 Character 里考虑 Unicode 的慢速方法，
+ * 分类结果和原来逐个调用 Character.isXxx 一样，只是 ASCII 以外的数字算作字母，只能出现在标识符里。
+ */
+final class CharClass {
+    /**
+     * 其他字符，交给运算符的状态转移表处理
+     */
+    static final byte OTHER = 0;
+    /**
+     * 空白字符
+     */
+    static final byte SPACE = 1;
+    /**
+     * 数字
+     */
+    static final byte DIGIT = 2;
+    /**
+     * 字母和下划线，可以作为标识符开头
+     */
+    static final byte ALPHA = 3;
+    /**
+     * 双引号
+     */
+    static final byte QUOTE = 4;
+    /**
+     * 单引号
+     */
+    static final byte APOSTROPHE = 5;
+
+    private static final byte[] TABLE = new byte[128];
+
+    static {
+        for (int c = 0; c < 128; c++) {
+            TABLE[c] = slowPath(c);
+        }
+    }
+
+    private CharClass() {
+    }
+
+    /**
+     * @param c 码点，小于 0 表示输入结束或者不合法的 UTF-8 编码
+     */
+    static byte of(int c) {
+        if (c < 0)
+            return OTHER;
+        if (c < 128)
+            return TABLE[c];
+        byte cls = slowPath(c);
+        return cls == DIGIT ? ALPHA : cls;
+    }
+
+    /**
+     * 标识符除了开头以外的字符：字母、数字和下划线
+     */
+    static boolean isIdentPart(int c) {
+        byte cls = of(c);
+        return cls == ALPHA || cls == DIGIT;
+    }
+
+    static boolean isDigit(int c) {
+        return of(c) == DIGIT;
+    }
+
+    static boolean isSpace(int c) {
+        return of(c) == SPACE;
+    }
+
+    private static byte slowPath(int c) {
+        if (c == '"')
+            return QUOTE;
+        if (c == '\'')
+            return APOSTROPHE;
+        if (Character.isWhitespace(c))
+            return SPACE;
+        if (Character.isDigit(c))
+            return DIGIT;
+        if (Character.isAlphabetic(c) || c == '_')
+            return ALPHA;
+        return OTHER;
+    }
+}
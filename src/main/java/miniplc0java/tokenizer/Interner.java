@@ -0,0 +1,145 @@
+package miniplc0java.tokenizer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 标识符池
+ * <p>
+ * 每次编译一个，词法分析时给每个不同的标识符分配一个从 0 开始连续的编号，
+ * 之后符号表、函数表和标准库函数的判断都只比较编号。
+ * 查找直接在源代码字节上进行，同一个标识符只在第一次出现时构造一次字符串。
+ * 哈希值按标识符的 UTF-8 字节计算，所以从字符串和从源代码查找得到的编号一致。
+ * <p>
+ * 流水线模式下词法分析在另一个线程里加入新的标识符，分析线程只通过 {@link #name(int)} 读取，
+ * 这两个操作互斥；其他操作只在词法分析的线程里进行。
+ */
+public class Interner {
+    // 标准库函数预先放进池里，编号小于 STD_COUNT 的就是标准库函数
+    public static final int GETINT = 0;
+    public static final int GETDOUBLE = 1;
+    public static final int GETCHAR = 2;
+    public static final int PUTINT = 3;
+    public static final int PUTDOUBLE = 4;
+    public static final int PUTCHAR = 5;
+    public static final int PUTSTR = 6;
+    public static final int PUTLN = 7;
+    public static final int STD_COUNT = 8;
+
+    // _start 和 main 也预先放进池里，语义分析不用再加入
+    public static final int START = 8;
+    public static final int MAIN = 9;
+
+    // 编号到名字
+    private final ArrayList<String> names = new ArrayList<>();
+
+    // 开放寻址的哈希表，存 编号 + 1，0 表示空
+    private int[] slots = new int[256];
+    private int[] hashes = new int[64];
+
+    public Interner() {
+        intern("getint");
+        intern("getdouble");
+        intern("getchar");
+        intern("putint");
+        intern("putdouble");
+        intern("putchar");
+        intern("putstr");
+        intern("putln");
+        intern("_start");
+        intern("main");
+    }
+
+    /**
+     * @return 编号为 id 的标识符
+     */
+    public synchronized String name(int id) {
+        return names.get(id);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public static boolean isStdFunc(int id) {
+        return id < STD_COUNT;
+    }
+
+    /**
+     * 获取字符串的编号，没有就新分配一个
+     */
+    public int intern(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80) {
+                hash = 0;
+                for (byte b : name.getBytes(StandardCharsets.UTF_8))
+                    hash = hash * 31 + (b & 0xff);
+                break;
+            }
+            hash = hash * 31 + c;
+        }
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        for (int id; (id = slots[i] - 1) >= 0; i = (i + 1) & mask) {
+            if (hashes[id] == hash && names.get(id).equals(name))
+                return id;
+        }
+        return add(name, hash, i);
+    }
+
+    /**
+     * 获取源代码 [start, end) 这段标识符的编号，没有就新分配一个
+     */
+    int intern(SourceInput input, int start, int end) {
+        int hash = 0;
+        for (int p = start; p < end; p++)
+            hash = hash * 31 + input.charAt(p);
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        for (int id; (id = slots[i] - 1) >= 0; i = (i + 1) & mask) {
+            if (hashes[id] == hash && matches(names.get(id), input, start, end))
+                return id;
+        }
+        return add(input.substring(start, end), hash, i);
+    }
+
+    private static boolean matches(String name, SourceInput input, int start, int end) {
+        // 含有 ASCII 以外的字符时字节数比字符数多，只能解码之后比较
+        if (name.length() != end - start)
+            return name.length() < end - start && name.equals(input.substring(start, end));
+        // 长度相等时两边都只能是 ASCII
+        for (int k = 0; k < name.length(); k++) {
+            char c = name.charAt(k);
+            if (c >= 0x80 || c != input.charAt(start + k))
+                return false;
+        }
+        return true;
+    }
+
+    private synchronized int add(String name, int hash, int slot) {
+        int id = names.size();
+        names.add(name);
+        if (id == hashes.length)
+            hashes = Arrays.copyOf(hashes, id * 2);
+        hashes[id] = hash;
+        slots[slot] = id + 1;
+        // 装载因子不超过 1/2
+        if (names.size() * 2 > slots.length)
+            rehash();
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < names.size(); id++) {
+            int i = hashes[id] & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = id + 1;
+        }
+    }
+}
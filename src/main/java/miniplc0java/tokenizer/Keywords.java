@@ -0,0 +1,83 @@
+package miniplc0java.tokenizer;
+
+/**
+ * 关键字识别
+ * <p>
+ * 关键字集合里首字母和长度的组合两两不同，所以用 (首字母, 长度) 作完美哈希，
+ * 最多再逐字符比较一次就能判断，识别过程不需要构造字符串。
+ */
+final class Keywords {
+    private static final int MAX_LENGTH = 8;
+
+    private static final String[] SPELLING = new String[26 * (MAX_LENGTH + 1)];
+    private static final TokenType[] TYPE = new TokenType[26 * (MAX_LENGTH + 1)];
+
+    static {
+        add("fn", TokenType.FN_KW);
+        add("let", TokenType.LET_KW);
+        add("const", TokenType.CONST_KW);
+        add("as", TokenType.AS_KW);
+        add("while", TokenType.WHILE_KW);
+        add("if", TokenType.IF_KW);
+        add("else", TokenType.ELSE_KW);
+        add("return", TokenType.RETURN_KW);
+        add("break", TokenType.BREAK_KW);
+        add("continue", TokenType.CONTINUE_KW);
+        add("int", TokenType.INT_KW);
+        add("double", TokenType.DOUBLE_KW);
+        add("void", TokenType.VOID_KW);
+    }
+
+    private Keywords() {
+    }
+
+    private static void add(String spelling, TokenType type) {
+        int slot = slot(spelling.charAt(0), spelling.length());
+        if (SPELLING[slot] != null)
+            throw new Error("keyword hash collision: " + spelling);
+        SPELLING[slot] = spelling;
+        TYPE[slot] = type;
+    }
+
+    private static int slot(int first, int length) {
+        return (first - 'a') * (MAX_LENGTH + 1) + length;
+    }
+
+    /**
+     * 查找 [start, start + length) 对应的关键字
+     *
+     * @return 关键字的下标，不是关键字时返回 -1
+     */
+    static int find(SourceInput input, int start, int length) {
+        int first = input.charAt(start);
+        if (first < 'a' || first > 'z' || length > MAX_LENGTH)
+            return -1;
+        int slot = slot(first, length);
+        String spelling = SPELLING[slot];
+        if (spelling == null)
+            return -1;
+        for (int i = 1; i < length; i++) {
+            if (input.charAt(start + i) != spelling.charAt(i))
+                return -1;
+        }
+        return slot;
+    }
+
+    static TokenType type(int keyword) {
+        return TYPE[keyword];
+    }
+
+    static String spelling(int keyword) {
+        return SPELLING[keyword];
+    }
+
+    /**
+     * 把每个关键字的拼写填到以 TokenType 序号为下标的数组里
+     */
+    static void fillSpellings(Object[] values) {
+        for (int i = 0; i < SPELLING.length; i++) {
+            if (SPELLING[i] != null)
+                values[TYPE[i].ordinal()] = SPELLING[i];
+        }
+    }
+}
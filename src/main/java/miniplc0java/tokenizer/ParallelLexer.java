@@ -0,0 +1,145 @@
+package miniplc0java.tokenizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * 并行词法分析
+ * <p>
+ * 把整个在内存里的源代码按行切成若干块，每块从行首开始独立识别，直到读过下一块的起点为止。
+ * 词法分析器除了当前偏移之外没有别的状态，所以只要前一块停下的位置恰好是后一块的某个 token 边界，
+ * 后一块从这个边界往后的结果就和顺序识别完全一样。
+ * 如果块的起点落在字符串或注释里，就找不到这样的边界，这时从前一块停下的位置把这一块重新识别一遍。
+ */
+final class ParallelLexer {
+    // 每块至少这么大，更小的输入直接顺序识别
+    static final int MIN_CHUNK = 1 << 18;
+
+    private ParallelLexer() {
+    }
+
+    static TokenBuffer lex(Tokenizer tokenizer, ForkJoinPool pool) {
+        return lex(tokenizer, pool, MIN_CHUNK);
+    }
+
+    static TokenBuffer lex(Tokenizer tokenizer, ForkJoinPool pool, int minChunk) {
+        SourceInput input = tokenizer.input;
+        // 流式读入时没有整个文件可以切分，按需识别
+        if (input instanceof StreamSourceInput)
+            return TokenBuffer.onDemand(tokenizer);
+        if (tokenizer.it.currentOffset() != 0
+                || input.window.limit() < 2 * minChunk || pool.getParallelism() < 2) {
+            return TokenBuffer.lex(tokenizer);
+        }
+        // 行首表在报错时才建立，要赶在多个线程同时用到它之前建好
+        input.posOf(0);
+
+        int[] bounds = split(input, pool.getParallelism(), minChunk);
+        int last = bounds.length - 2;
+        List<Callable<TokenBuffer>> tasks = new ArrayList<>();
+        for (int k = 0; k <= last; k++) {
+            int from = bounds[k];
+            int stop = k == last ? Integer.MAX_VALUE : bounds[k + 1];
+            tasks.add(() -> lexChunk(input, from, stop));
+        }
+        List<Future<TokenBuffer>> chunks = pool.invokeAll(tasks);
+
+        var result = new TokenBuffer(tokenizer);
+        // 顺序识别时当前读到的位置，总是某个 token 的结尾
+        int position = 0;
+        for (int k = 0; k <= last; k++) {
+            int stop = k == last ? Integer.MAX_VALUE : bounds[k + 1];
+            if (position >= stop) {
+                // 前一块最后一个 token 跨过了整块
+                continue;
+            }
+            var chunk = join(chunks.get(k));
+            int from = boundaryIndex(chunk, bounds[k], position);
+            if (from < 0) {
+                chunk = lexChunk(input, position, stop);
+                from = 0;
+            }
+            result.append(chunk, from);
+            if (chunk.error != null) {
+                result.error = chunk.error;
+                return result;
+            }
+            if (result.endsWithEof())
+                return result;
+            position = chunk.getEndOffset(chunk.count - 1);
+        }
+        return result;
+    }
+
+    /**
+     * 从 from 开始识别，读过 stop 之后停下
+     */
+    private static TokenBuffer lexChunk(SourceInput input, int from, int stop) {
+        var it = new StringIter(input);
+        it.advanceTo(from);
+        var tokenizer = new Tokenizer(it);
+        var buffer = new TokenBuffer(tokenizer);
+        buffer.lexUntil(tokenizer, stop);
+        return buffer;
+    }
+
+    /**
+     * 在一块里找结束于 position 的 token 边界
+     *
+     * @param start 这一块开始识别的位置
+     * @return 边界之后第一个 token 的下标，找不到时返回 -1
+     */
+    private static int boundaryIndex(TokenBuffer chunk, int start, int position) {
+        if (start == position)
+            return 0;
+        for (int i = 0; i < chunk.count; i++) {
+            int end = chunk.getEndOffset(i);
+            if (end == position)
+                return i + 1;
+            if (end > position)
+                break;
+        }
+        return -1;
+    }
+
+    /**
+     * 按行切块，返回每块的起点，最后一个元素是输入的长度
+     */
+    private static int[] split(SourceInput input, int parallelism, int minChunk) {
+        int length = input.window.limit();
+        int size = Math.max(minChunk, length / (parallelism * 4));
+        var bounds = new ArrayList<Integer>();
+        bounds.add(0);
+        int p = size;
+        while (p < length) {
+            while (p < length && input.charAt(p - 1) != '\n')
+                p++;
+            if (p >= length)
+                break;
+            bounds.add(p);
+            p += size;
+        }
+        bounds.add(length);
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static TokenBuffer join(Future<TokenBuffer> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            // 和顺序识别时一样把异常原样抛出
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
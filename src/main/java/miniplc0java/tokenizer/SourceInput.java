@@ -0,0 +1,245 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.util.LineIndex;
+import miniplc0java.util.Pos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 源代码输入
+ * <p>
+ * 文件直接映射进内存，标准输入一次读进一个缓冲区，词法分析在原始字节上进行。
+ * 源代码按 UTF-8 编码：ASCII 字符逐字节判断，其他字符由 {@link #codePointAt} 解码，
+ * 截出来的标识符和字符串常量也按 UTF-8 解码。
+ * 偏移从 0 开始按字节计，行号和列号在需要时通过 {@link LineIndex} 由偏移换算出来，列号按字符计。
+ * <p>
+ * 整个文件都在内存里时 window 就是全部源代码；流式读入时（{@link StreamSourceInput}）
+ * window 只是从偏移 base 开始的一段，读到窗口外时调用 fill 补充。
+ */
+public class SourceInput {
+    /**
+     * {@link #codePointAt} 遇到不合法的 UTF-8 编码时的返回值
+     */
+    public static final int MALFORMED = -2;
+
+    // 当前可见的源代码字节
+    ByteBuffer window;
+
+    // window 第一个字节在整个源代码中的偏移
+    int base = 0;
+
+    // 行首偏移表，整个文件都在内存里时第一次用到才建立
+    LineIndex lines;
+
+    SourceInput(ByteBuffer window) {
+        this.window = window;
+    }
+
+    /**
+     * 把文件映射进内存
+     *
+     * @param fileName 文件名
+     */
+    public static SourceInput fromFile(String fileName) throws IOException {
+        try (var channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Source file too large: " + fileName);
+            // 映射在 channel 关闭后依然有效
+            return new SourceInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /**
+     * 一次读入整个输入流
+     *
+     * @param input 输入流，例如标准输入
+     */
+    public static SourceInput fromStream(InputStream input) throws IOException {
+        return new SourceInput(ByteBuffer.wrap(input.readAllBytes()));
+    }
+
+    /**
+     * 按块流式读入，内存占用不随源代码大小增长
+     *
+     * @param input 输入流，例如标准输入
+     */
+    public static SourceInput streaming(InputStream input) {
+        return new StreamSourceInput(input);
+    }
+
+    /**
+     * 获取 offset 处的字符
+     *
+     * @return 0~255 的字符，超出结尾时返回 -1
+     */
+    public int charAt(int offset) {
+        if (offset - base >= window.limit() && !fill(offset)) {
+            return -1;
+        }
+        return window.get(offset - base) & 0xff;
+    }
+
+    /**
+     * 获取 offset 处 UTF-8 编码的字符
+     *
+     * @return 码点，超出结尾时返回 -1，不是合法的 UTF-8 编码（包括过长的编码和代理项）时返回 {@link #MALFORMED}
+     */
+    public int codePointAt(int offset) {
+        int c = charAt(offset);
+        if (c < 0x80)
+            return c;
+        int length, min;
+        if (c < 0xC0) {
+            return MALFORMED;
+        } else if (c < 0xE0) {
+            length = 2;
+            min = 0x80;
+            c &= 0x1F;
+        } else if (c < 0xF0) {
+            length = 3;
+            min = 0x800;
+            c &= 0x0F;
+        } else if (c < 0xF8) {
+            length = 4;
+            min = 0x10000;
+            c &= 0x07;
+        } else {
+            return MALFORMED;
+        }
+        for (int i = 1; i < length; i++) {
+            int next = charAt(offset + i);
+            if ((next & 0xC0) != 0x80)
+                return MALFORMED;
+            c = (c << 6) | (next & 0x3F);
+        }
+        if (c < min || c > Character.MAX_CODE_POINT || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE))
+            return MALFORMED;
+        return c;
+    }
+
+    /**
+     * @return 码点 c 按 UTF-8 编码的字节数，c 小于 0 时为 0
+     */
+    public static int utf8Length(int c) {
+        if (c < 0)
+            return 0;
+        if (c < 0x80)
+            return 1;
+        if (c < 0x800)
+            return 2;
+        return c < 0x10000 ? 3 : 4;
+    }
+
+    // 下面几个扫描函数一次读 8 个字节，用位运算同时判断这 8 个字节（SWAR）
+    // getLong 按大端读取，内存中靠前的字节在 long 的高位，所以第一个命中的字节看前导零的个数
+    private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+    private static final long ONES = 0x0101010101010101L;
+
+    /**
+     * 等于 0 的字节在结果中最高位为 1，其余位都是 0
+     * <p>
+     * 每个字节先去掉最高位再加 0x7F，不会向相邻的字节进位，所以不会误报
+     */
+    private static long zeroBytes(long word) {
+        return ~(((word & LOW7) + LOW7) | word | LOW7);
+    }
+
+    /**
+     * 从 offset 开始跳过连续的字符 c
+     *
+     * @return 第一个不是 c 的字符的偏移
+     */
+    int skip(int offset, int c) {
+        long pattern = ONES * c;
+        for (; offset - base + Long.BYTES <= window.limit(); offset += Long.BYTES) {
+            long others = ~zeroBytes(window.getLong(offset - base) ^ pattern) & ~LOW7;
+            if (others != 0)
+                return offset + (Long.numberOfLeadingZeros(others) >>> 3);
+        }
+        while (charAt(offset) == c)
+            offset++;
+        return offset;
+    }
+
+    /**
+     * 从 offset 开始找第一个 a 或 b
+     *
+     * @return 找到的偏移，找不到时是输入结尾的偏移
+     */
+    int indexOf(int offset, int a, int b) {
+        long patternA = ONES * a;
+        long patternB = ONES * b;
+        for (; offset - base + Long.BYTES <= window.limit(); offset += Long.BYTES) {
+            long word = window.getLong(offset - base);
+            long found = zeroBytes(word ^ patternA) | zeroBytes(word ^ patternB);
+            if (found != 0)
+                return offset + (Long.numberOfLeadingZeros(found) >>> 3);
+        }
+        int ch;
+        while ((ch = charAt(offset)) >= 0 && ch != a && ch != b)
+            offset++;
+        return offset;
+    }
+
+    /**
+     * 取出 [from, to) 之间的源代码并按 UTF-8 解码，调用前 to - 1 处的字符必须已经读过
+     */
+    public String substring(int from, int to) {
+        if (window.hasArray()) {
+            return new String(window.array(), window.arrayOffset() + from - base, to - from, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[to - from];
+        window.duplicate().position(from - base).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 把偏移换算成行号和列号，只在报错时使用
+     * <p>
+     * 列号减掉这一行里 UTF-8 的后续字节，流式读入时只能数到窗口里还留着的部分
+     */
+    public Pos posOf(int offset) {
+        if (lines == null) {
+            lines = new LineIndex();
+            for (int i = 0; i < window.limit(); i++) {
+                if (window.get(i) == '\n')
+                    lines.addLineStart(i + 1);
+            }
+        }
+        Pos pos = lines.posOf(offset);
+        for (int p = Math.max(offset - pos.col, base); p < offset && p - base < window.limit(); p++) {
+            if ((window.get(p - base) & 0xC0) == 0x80)
+                pos.col--;
+        }
+        return pos;
+    }
+
+    /**
+     * @return 为源代码分配的内存字节数，流式读入时是缓冲区的大小
+     */
+    public int windowCapacity() {
+        return window.capacity();
+    }
+
+    /**
+     * 通知输入 offset 之前的内容不会再被读取，流式读入时可以丢掉
+     */
+    public void release(int offset) {
+    }
+
+    /**
+     * 让 window 包含 offset 处的字节
+     *
+     * @return offset 超出输入结尾时返回 false
+     */
+    boolean fill(int offset) {
+        return false;
+    }
+}
@@ -0,0 +1,85 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.util.LineIndex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 流式的源代码输入
+ * <p>
+ * 每次从输入流读入固定大小的一块，只保留 release 标记之后的内容（再多留几个字节给 unreadLast），
+ * 所以缓冲区大小只和最长的 token 有关，和源代码大小无关。
+ * 内容丢掉之后就没法再扫描换行了，所以行首偏移表在读入时顺便建立，每行占 4 个字节。
+ */
+class StreamSourceInput extends SourceInput {
+    // 每次读入的字节数
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    // release 标记之前额外保留的字节数
+    static final int KEEP = 16;
+
+    InputStream input;
+
+    byte[] buffer = new byte[2 * CHUNK_SIZE];
+
+    // 已经不再需要的位置
+    int mark = 0;
+
+    boolean eof = false;
+
+    StreamSourceInput(InputStream input) {
+        super(ByteBuffer.allocate(0));
+        this.input = input;
+        this.lines = new LineIndex();
+    }
+
+    @Override
+    public void release(int offset) {
+        if (offset > mark) {
+            mark = offset;
+        }
+    }
+
+    @Override
+    boolean fill(int offset) {
+        int filled = window.limit();
+        try {
+            while (offset - base >= filled) {
+                if (eof) {
+                    return false;
+                }
+                // 丢掉已经用完的内容
+                int drop = Math.max(0, Math.min(mark - KEEP, base + filled) - base);
+                if (drop > 0) {
+                    System.arraycopy(buffer, drop, buffer, 0, filled - drop);
+                    filled -= drop;
+                    base += drop;
+                }
+                // 一个 token 比缓冲区还长时才扩容
+                if (buffer.length - filled < CHUNK_SIZE) {
+                    byte[] bigger = new byte[Math.max(buffer.length * 2, filled + CHUNK_SIZE)];
+                    System.arraycopy(buffer, 0, bigger, 0, filled);
+                    buffer = bigger;
+                }
+                int n = input.read(buffer, filled, CHUNK_SIZE);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    for (int i = filled; i < filled + n; i++) {
+                        if (buffer[i] == '\n')
+                            lines.addLineStart(base + i + 1);
+                    }
+                    filled += n;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            window = ByteBuffer.wrap(buffer, 0, filled);
+        }
+    }
+}
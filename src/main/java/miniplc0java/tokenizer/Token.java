@@ -1,6 +1,5 @@
 package miniplc0java.tokenizer;
 
-import miniplc0java.error.TokenizeError;
 import miniplc0java.util.Pos;
 
 import java.util.Objects;
@@ -8,21 +7,33 @@ import java.util.Objects;
 public class Token {
     private TokenType tokenType;
     private Object value;
-    private Pos startPos;
-    private Pos endPos;
-
-    public Token(TokenType tokenType, Object value, Pos startPos, Pos endPos) {
+    // 位置只存偏移，需要行列号时再通过 source 换算
+    private int startOffset;
+    private int endOffset;
+    private SourceInput source;
+    // 标识符在 Interner 中的编号，其他 token 为 -1
+    private int id = -1;
+
+    public Token(TokenType tokenType, Object value, int startOffset, int endOffset, SourceInput source) {
         this.tokenType = tokenType;
         this.value = value;
-        this.startPos = startPos;
-        this.endPos = endPos;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+        this.source = source;
+    }
+
+    public Token(TokenType tokenType, Object value, int startOffset, int endOffset, SourceInput source, int id) {
+        this(tokenType, value, startOffset, endOffset, source);
+        this.id = id;
     }
 
     public Token(Token token) {
         this.tokenType = token.tokenType;
         this.value = token.value;
-        this.startPos = token.startPos;
-        this.endPos = token.endPos;
+        this.startOffset = token.startOffset;
+        this.endOffset = token.endOffset;
+        this.source = token.source;
+        this.id = token.id;
     }
 
     @Override
@@ -33,12 +44,12 @@ public class Token {
             return false;
         Token token = (Token) o;
         return tokenType == token.tokenType && Objects.equals(value, token.value)
-                && Objects.equals(startPos, token.startPos) && Objects.equals(endPos, token.endPos);
+                && startOffset == token.startOffset && endOffset == token.endOffset;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(tokenType, value, startPos, endPos);
+        return Objects.hash(tokenType, value, startOffset, endOffset);
     }
 
     public String getValueString() {
@@ -64,27 +75,38 @@ public class Token {
         this.value = value;
     }
 
-    public Pos getStartPos() {
-        return startPos;
+    /**
+     * @return 标识符的编号
+     */
+    public int getId() {
+        return id;
     }
 
-    public void setStartPos(Pos startPos) {
-        this.startPos = startPos;
+    public int getStartOffset() {
+        return startOffset;
     }
 
-    public Pos getEndPos() {
-        return endPos;
+    public int getEndOffset() {
+        return endOffset;
     }
 
-    public void setEndPos(Pos endPos) {
-        this.endPos = endPos;
+    /**
+     * 每次调用都会重新换算，只在报错时使用
+     */
+    public Pos getStartPos() {
+        return source.posOf(startOffset);
+    }
+
+    public Pos getEndPos() {
+        return source.posOf(endOffset);
     }
 
     @Override
     public String toString() {
         var sb = new StringBuilder();
-        sb.append("Line: ").append(this.startPos.row).append(' ');
-        sb.append("Column: ").append(this.startPos.col).append(' ');
+        var startPos = getStartPos();
+        sb.append("Line: ").append(startPos.row).append(' ');
+        sb.append("Column: ").append(startPos.col).append(' ');
         sb.append("Type: ").append(this.tokenType).append(' ');
         sb.append("Value: ").append(this.value);
         return sb.toString();
@@ -92,6 +114,6 @@ public class Token {
 
     public String toStringAlt() {
         return new StringBuilder().append("Token(").append(this.tokenType).append(", value: ").append(value)
-                .append("at: ").append(this.startPos).toString();
+                .append("at: ").append(getStartPos()).toString();
     }
 }
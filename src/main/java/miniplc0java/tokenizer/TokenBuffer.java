@@ -0,0 +1,417 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.TokenizeError;
+import miniplc0java.util.Pos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 按列存储的 token 流
+ * <p>
+ * 一次把整个文件识别完，每个 token 只占几个基本类型数组里的一格：
+ * 类型的序号、起止偏移和一个 long 值（整数、字符、标识符编号、浮点数的原始位、字符串下标）。
+ * 语法分析用下标遍历，只有报错时才构造 {@link Token} 对象。
+ * <p>
+ * 按需识别时（{@link #onDemand(Tokenizer)}）token 放在固定大小的环里，下标对 mask 取与得到格子，
+ * 语法分析读到还没识别的 token 时在自己的线程里再识别一批，内存占用和源代码大小无关，配合流式读入使用。
+ * <p>
+ * 流水线模式下词法分析在另一个线程里进行，同样用环。
+ * 词法线程每识别一批就发布一次，环满了就等；语法分析读到还没发布的 token 时等待，
+ * 并定期告诉词法线程哪些格子可以覆盖。语法分析只回看刚读过的几个 token。
+ */
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // 流水线模式下环的大小和每批的 token 数
+    static final int RING_SIZE = 1 << 14;
+    static final int BATCH = 256;
+
+    // 按需识别时环的大小，要大于 BATCH + LOOKBACK
+    static final int PULL_RING_SIZE = 1 << 10;
+
+    // 语法分析可能回看的 token 数，这些格子不会被覆盖
+    static final int LOOKBACK = 64;
+
+    private byte[] kinds = new byte[1024];
+    private int[] starts = new int[1024];
+    private int[] ends = new int[1024];
+    private long[] payloads = new long[1024];
+    int count = 0;
+
+    // 一次识别完时是 -1，下标就是格子；流水线模式下是环的大小减一
+    private int mask = -1;
+
+    // 语法分析一侧：下标小于 limit 时直接读，否则要检查结尾或者等待词法线程
+    private int limit = 0;
+
+    // 字符串常量的值，payload 存这里的下标；流水线模式下按格子存在 texts 里
+    private final ArrayList<String> strings = new ArrayList<>();
+    private String[] texts;
+
+    // 词法线程一侧：count 到达 room 之前环里有空位
+    private int room;
+
+    // 流水线模式：已经发布的 token 数，语法分析不再需要的 token 数，词法线程是否已经停下
+    private volatile int published = 0;
+    private volatile int released = 0;
+    private volatile boolean finished = false;
+
+    private Thread lexer;
+    private Thread parser;
+
+    // 词法错误推迟到分析读到这个位置时才抛出，保证和边识别边分析时的报错顺序一致
+    TokenizeError error;
+
+    private final SourceInput input;
+    private final Interner interner;
+
+    // 按需识别时的词法分析器，其他模式为 null
+    private Tokenizer puller;
+
+    TokenBuffer(Tokenizer tokenizer) {
+        this.input = tokenizer.input;
+        this.interner = tokenizer.getInterner();
+    }
+
+    /**
+     * 识别整个文件，最后一个 token 是 EOF，出错时停在出错的位置
+     */
+    public static TokenBuffer lex(Tokenizer tokenizer) {
+        var buffer = new TokenBuffer(tokenizer);
+        buffer.lexUntil(tokenizer, Integer.MAX_VALUE);
+        return buffer;
+    }
+
+    /**
+     * 语法分析读到哪里才识别到哪里，结果和 {@link #lex(Tokenizer)} 完全相同
+     * <p>
+     * 只保留最近的 {@link #PULL_RING_SIZE} 个 token，{@link #size()} 是已经识别的 token 数。
+     */
+    public static TokenBuffer onDemand(Tokenizer tokenizer) {
+        var buffer = new TokenBuffer(tokenizer);
+        buffer.allocateRing(PULL_RING_SIZE);
+        buffer.room = Integer.MAX_VALUE;
+        buffer.puller = tokenizer;
+        return buffer;
+    }
+
+    /**
+     * 在单独的线程里识别，和语法分析同时进行，结果和 {@link #lex(Tokenizer)} 完全相同
+     * <p>
+     * 返回的 token 流只能在调用这个方法的线程里读。
+     * 流式读入时行首表边读边建，不能跨线程使用，这时退回到 {@link #onDemand(Tokenizer)}。
+     */
+    public static TokenBuffer lexPipelined(Tokenizer tokenizer) {
+        SourceInput input = tokenizer.input;
+        if (input instanceof StreamSourceInput)
+            return onDemand(tokenizer);
+        // 行首表在报错时才建立，要赶在两个线程同时用到它之前建好
+        input.posOf(0);
+
+        var buffer = new TokenBuffer(tokenizer);
+        buffer.allocateRing(RING_SIZE);
+        buffer.room = RING_SIZE;
+        buffer.parser = Thread.currentThread();
+        buffer.lexer = new Thread(() -> buffer.lexRing(tokenizer), "lexer");
+        buffer.lexer.setDaemon(true);
+        buffer.lexer.start();
+        return buffer;
+    }
+
+    /**
+     * 把源代码切成若干块在 pool 里并行识别，结果和 {@link #lex(Tokenizer)} 完全相同
+     */
+    public static TokenBuffer lexParallel(Tokenizer tokenizer, ForkJoinPool pool) {
+        return ParallelLexer.lex(tokenizer, pool);
+    }
+
+    private void allocateRing(int size) {
+        mask = size - 1;
+        kinds = new byte[size];
+        starts = new int[size];
+        ends = new int[size];
+        payloads = new long[size];
+        texts = new String[size];
+    }
+
+    /**
+     * 一直识别到 EOF、出错，或者读过的位置到达 stop 为止
+     */
+    void lexUntil(Tokenizer tokenizer, int stop) {
+        try {
+            do {
+                tokenizer.lexToken();
+                add(tokenizer);
+            } while (tokenizer.tokenType != TokenType.EOF && tokenizer.tokenEnd < stop);
+        } catch (TokenizeError e) {
+            error = e;
+        }
+        limit = count;
+    }
+
+    /**
+     * 词法线程：识别到 EOF 或者出错为止
+     */
+    private void lexRing(Tokenizer tokenizer) {
+        try {
+            do {
+                tokenizer.lexToken();
+                add(tokenizer);
+            } while (tokenizer.tokenType != TokenType.EOF);
+        } catch (TokenizeError e) {
+            error = e;
+        } finally {
+            // error 在 finished 之前写入，语法分析看到 finished 之后就能看到它
+            published = count;
+            finished = true;
+            LockSupport.unpark(parser);
+        }
+    }
+
+    /**
+     * 词法线程：发布这一批 token，等到环里有空位为止
+     */
+    private void waitForRoom() {
+        published = count;
+        LockSupport.unpark(parser);
+        while (count - released >= RING_SIZE)
+            LockSupport.park(this);
+        room = released + RING_SIZE;
+    }
+
+    /**
+     * 语法分析：放掉 i 之前不再回看的格子，等到第 i 个 token 发布或者词法线程停下
+     *
+     * @return 可以读的位置，EOF 之后一直是 EOF
+     */
+    private int awaitToken(int i) throws TokenizeError {
+        if (i - LOOKBACK > released) {
+            released = i - LOOKBACK;
+            LockSupport.unpark(lexer);
+        }
+        int ready;
+        while (i >= (ready = published) && !finished)
+            LockSupport.park(this);
+        if (i >= ready) {
+            // 词法线程已经停下，finished 之后 published 不再变化
+            ready = published;
+            if (i >= ready) {
+                limit = ready;
+                if (error != null)
+                    throw error;
+                return ready - 1;
+            }
+        }
+        // 读到下一批或者该放掉格子时再回到这里
+        limit = Math.min(ready, released + LOOKBACK + BATCH);
+        return i;
+    }
+
+    /**
+     * 按需识别：识别到第 i 个 token 之后再多识别一批
+     *
+     * @return 可以读的位置，EOF 之后一直是 EOF
+     */
+    private int pull(int i) throws TokenizeError {
+        if (!finished) {
+            try {
+                // 每批不超过 BATCH 个，被覆盖的格子一定在 LOOKBACK 之外
+                int stop = i + BATCH;
+                do {
+                    puller.lexToken();
+                    addToRing(puller);
+                } while (puller.tokenType != TokenType.EOF && count < stop);
+                finished = puller.tokenType == TokenType.EOF;
+            } catch (TokenizeError e) {
+                error = e;
+                finished = true;
+            }
+            limit = count;
+        }
+        if (i < count)
+            return i;
+        if (error != null)
+            throw error;
+        return count - 1;
+    }
+
+    private void grow() {
+        int capacity = count * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        payloads = Arrays.copyOf(payloads, capacity);
+    }
+
+    private void add(Tokenizer tokenizer) {
+        if (mask != -1) {
+            addToRing(tokenizer);
+            return;
+        }
+        if (count == kinds.length)
+            grow();
+        TokenType type = tokenizer.tokenType;
+        kinds[count] = (byte) type.ordinal();
+        starts[count] = tokenizer.tokenStart;
+        ends[count] = tokenizer.tokenEnd;
+        if (type == TokenType.STRING_LITEREAL) {
+            payloads[count] = strings.size();
+            strings.add((String) tokenizer.tokenValue);
+        } else {
+            payloads[count] = tokenizer.tokenBits;
+        }
+        count++;
+    }
+
+    private void addToRing(Tokenizer tokenizer) {
+        if (count == room)
+            waitForRoom();
+        int slot = count & mask;
+        TokenType type = tokenizer.tokenType;
+        kinds[slot] = (byte) type.ordinal();
+        starts[slot] = tokenizer.tokenStart;
+        ends[slot] = tokenizer.tokenEnd;
+        if (type == TokenType.STRING_LITEREAL)
+            texts[slot] = (String) tokenizer.tokenValue;
+        else
+            payloads[slot] = tokenizer.tokenBits;
+        count++;
+        if ((count & (BATCH - 1)) == 0 && parser != null) {
+            published = count;
+            LockSupport.unpark(parser);
+        }
+    }
+
+    /**
+     * 把 src 从下标 from 开始的 token 接到后面，标识符编号从 src 的标识符池换算到自己的
+     */
+    void append(TokenBuffer src, int from) {
+        int[] ids = new int[src.interner.size()];
+        Arrays.fill(ids, -1);
+        for (int i = from; i < src.count; i++) {
+            if (count == kinds.length)
+                grow();
+            long payload = src.payloads[i];
+            if (src.kinds[i] == TokenType.IDENT.ordinal()) {
+                int id = (int) payload;
+                if (ids[id] < 0)
+                    ids[id] = interner.intern(src.interner.name(id));
+                payload = ids[id];
+            } else if (src.kinds[i] == TokenType.STRING_LITEREAL.ordinal()) {
+                payload = strings.size();
+                strings.add(src.strings.get((int) src.payloads[i]));
+            }
+            kinds[count] = src.kinds[i];
+            starts[count] = src.starts[i];
+            ends[count] = src.ends[i];
+            payloads[count] = payload;
+            count++;
+        }
+        limit = count;
+    }
+
+    /**
+     * 读到出错的位置时抛出词法错误，EOF 之后一直是 EOF
+     */
+    private int check(int i) throws TokenizeError {
+        if (i >= limit) {
+            if (puller != null)
+                return pull(i);
+            if (mask != -1)
+                return awaitToken(i);
+            if (error != null)
+                throw error;
+            return count - 1;
+        }
+        return i;
+    }
+
+    boolean endsWithEof() {
+        return count > 0 && kinds[count - 1] == TokenType.EOF.ordinal();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return 能同时存放的 token 数
+     */
+    public int capacity() {
+        return kinds.length;
+    }
+
+    public TokenType getType(int i) throws TokenizeError {
+        return TYPES[kinds[check(i) & mask]];
+    }
+
+    public int getStartOffset(int i) {
+        return starts[i & mask];
+    }
+
+    public int getEndOffset(int i) {
+        return ends[i & mask];
+    }
+
+    /**
+     * @return 标识符的编号
+     */
+    public int getId(int i) {
+        return (int) payloads[i & mask];
+    }
+
+    /**
+     * @return 整数或字符常量的值
+     */
+    public long getLong(int i) {
+        return payloads[i & mask];
+    }
+
+    public double getDouble(int i) {
+        return Double.longBitsToDouble(payloads[i & mask]);
+    }
+
+    public String getString(int i) {
+        if (mask != -1)
+            return texts[i & mask];
+        return strings.get((int) payloads[i]);
+    }
+
+    /**
+     * 把偏移换算成行号和列号，只在报错时使用
+     */
+    public Pos posOf(int offset) {
+        return input.posOf(offset);
+    }
+
+    /**
+     * 构造第 i 个 token 的对象，只在报错时使用
+     */
+    public Token getToken(int i) throws TokenizeError {
+        i = check(i);
+        TokenType type = TYPES[kinds[i & mask]];
+        Object value;
+        switch (type) {
+            case Uint_LITERAL:
+                value = getLong(i);
+                break;
+            case DOUBLE_LITERAL:
+                value = getDouble(i);
+                break;
+            case CHAR_LITEREAL:
+                value = (int) getLong(i);
+                break;
+            case STRING_LITEREAL:
+                value = getString(i);
+                break;
+            case IDENT:
+                return new Token(type, interner.name(getId(i)), getStartOffset(i), getEndOffset(i), input, getId(i));
+            default:
+                value = Tokenizer.constantValue(type);
+        }
+        return new Token(type, value, getStartOffset(i), getEndOffset(i), input);
+    }
+}
@@ -4,16 +4,93 @@ import miniplc0java.error.CompileError;
 import miniplc0java.error.TokenizeError;
 import miniplc0java.error.ErrorCode;
 
-import miniplc0java.util.Pos;
-
-import java.nio.CharBuffer;
 
 public class Tokenizer {
 
-    private StringIter it;
+    // 运算符的状态转移表
+    // OP_START[c] 是读入第一个字符 c 之后的状态，OP_NEXT[state][c] 是再读入 c 之后的状态，
+    // 停下时 OP_ACCEPT[state] 就是识别出的 token，null 表示出错，OP_VALUE[state] 是 token 的值
+    private static final int OP_NONE = 0;
+    private static final int[] OP_START = new int[128];
+    private static final int[][] OP_NEXT = new int[32][128];
+    private static final TokenType[] OP_ACCEPT = new TokenType[32];
+    private static final Object[] OP_VALUE = new Object[32];
+    private static int opStates = 1;
+
+    // 关键字、运算符和 EOF 的值只和类型有关，TokenBuffer 据此还原 Token
+    private static final Object[] CONSTANT_VALUE = new Object[TokenType.values().length];
+
+    static {
+        addOperator("+", TokenType.PLUS, '+');
+        addOperator("-", TokenType.MINUS, '-');
+        addOperator("->", TokenType.ARROW, "->");
+        addOperator("*", TokenType.MUL, '*');
+        addOperator(":", TokenType.COLON, ':');
+        addOperator("/", TokenType.DIV, '/');
+        addOperator("//", TokenType.COMMENT, null);
+        addOperator("=", TokenType.ASSIGN, '=');
+        addOperator("==", TokenType.EQ, "==");
+        addOperator("!", null, null);
+        addOperator("!=", TokenType.NEQ, "!=");
+        addOperator("<", TokenType.LT, '<');
+        addOperator("<=", TokenType.LE, "<=");
+        addOperator(">", TokenType.GT, '>');
+        addOperator(">=", TokenType.GE, ">=");
+        addOperator(",", TokenType.COMMA, ',');
+        addOperator(";", TokenType.SEMICOLON, ';');
+        addOperator("(", TokenType.L_PAREN, '(');
+        addOperator(")", TokenType.R_PAREN, ')');
+        addOperator("{", TokenType.L_BRACE, '{');
+        addOperator("}", TokenType.R_BRACE, '}');
+        Keywords.fillSpellings(CONSTANT_VALUE);
+        CONSTANT_VALUE[TokenType.EOF.ordinal()] = "";
+    }
+
+    /**
+     * 往状态转移表里加一个运算符，两个字符的运算符要在它的前缀之后添加
+     */
+    private static void addOperator(String op, TokenType type, Object value) {
+        int state = opStates++;
+        if (op.length() == 1)
+            OP_START[op.charAt(0)] = state;
+        else
+            OP_NEXT[OP_START[op.charAt(0)]][op.charAt(1)] = state;
+        OP_ACCEPT[state] = type;
+        OP_VALUE[state] = value;
+        if (type != null)
+            CONSTANT_VALUE[type.ordinal()] = value;
+    }
+
+    /**
+     * @return 值只和类型有关的 token 的值
+     */
+    static Object constantValue(TokenType type) {
+        return CONSTANT_VALUE[type.ordinal()];
+    }
+
+    StringIter it;
+
+    SourceInput input;
+
+    private Interner interner = new Interner();
+
+    // 刚识别出来的 token 先放在下面几个字段里，真正需要 Token 对象时才构造
+    // 这样扫描过程中不会为每个字符分配对象，数字也只在构造 Token 时装箱
+    TokenType tokenType;
+    int tokenStart;
+    int tokenEnd;
+    // 整数和字符常量的值，浮点数常量存 Double.doubleToRawLongBits 的结果，标识符存编号
+    long tokenBits;
+    // 其他 token 的值
+    Object tokenValue;
 
     public Tokenizer(StringIter it) {
         this.it = it;
+        this.input = it.getInput();
+    }
+
+    public Interner getInterner() {
+        return interner;
     }
 
     // 这里本来是想实现 Iterator<Token> 的，但是 Iterator 不允许抛异常，于是就这样了
@@ -25,78 +102,139 @@ public class Tokenizer {
      * @throws TokenizeError 如果解析有异常则抛出
      */
     public Token nextToken() throws TokenizeError {
-        it.readAll();
+        lexToken();
+        return makeToken();
+    }
 
-        // 跳过之前的所有空白字符
-        skipSpaceCharacters();
+    /**
+     * 识别下一个 token，结果放在 tokenType 等字段里，注释会被直接跳过
+     */
+    void lexToken() throws TokenizeError {
+        do {
+            // 跳过之前的所有空白字符
+            skipSpaceCharacters();
 
-        if (it.isEOF()) {
-            return new Token(TokenType.EOF, "", it.currentPos(), it.currentPos());
+            int start = it.currentOffset();
+            int peek = input.charAt(start);
+            if (peek < 0) {
+                setToken(TokenType.EOF, "", start, start);
+                return;
+            }
+            switch (CharClass.of(peek < 0x80 ? peek : input.codePointAt(start))) {
+                case CharClass.DIGIT:
+                    lexUIntOrDouble(start);
+                    break;
+                case CharClass.ALPHA:
+                    lexIdentOrKeyword(start);
+                    break;
+                case CharClass.QUOTE:
+                    lexString(start);
+                    break;
+                case CharClass.APOSTROPHE:
+                    lexChar();
+                    break;
+                default:
+                    lexOperatorOrUnknown(start);
+            }
+        } while (tokenType == TokenType.COMMENT);
+    }
+
+    private Token makeToken() {
+        Object value;
+        switch (tokenType) {
+            case Uint_LITERAL:
+                value = tokenBits;
+                break;
+            case DOUBLE_LITERAL:
+                value = Double.longBitsToDouble(tokenBits);
+                break;
+            case CHAR_LITEREAL:
+                value = (int) tokenBits;
+                break;
+            case IDENT:
+                return new Token(tokenType, interner.name((int) tokenBits), tokenStart, tokenEnd, input, (int) tokenBits);
+            default:
+                value = tokenValue;
         }
-        Token ret;
-        char peek = it.peekChar();
-        if (Character.isDigit(peek))
-            ret =  lexUIntOrDouble();
-        else if (Character.isAlphabetic(peek) || peek == '_')
-            ret =  lexIdentOrKeyword();
-        else if (peek == '"')
-            ret = lexString();
-        else if (peek == '\'')
-            ret =  lexChar();
-        else
-            ret = lexOperatorOrUnknown();
-        if (ret.getTokenType() == TokenType.COMMENT)
-            ret = nextToken();
-        return ret;
+        return new Token(tokenType, value, tokenStart, tokenEnd, input);
+    }
+
+    private void setToken(TokenType type, Object value, int start, int end) {
+        tokenType = type;
+        tokenValue = value;
+        tokenStart = start;
+        tokenEnd = end;
+        it.advanceTo(end);
+    }
+
+    /**
+     * 构造一个位置在 offset 前一个字符的错误，和原来的 it.previousPos() 一致
+     */
+    private TokenizeError invalidInput(int offset) {
+        it.advanceTo(offset);
+        return new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
     }
 
-    private Token lexString() throws TokenizeError {
+    private void lexString(int start) throws TokenizeError {
         // 跳过双引号"
-        Pos prePos = it.currentPos();
-        it.nextChar();
-        StringBuilder ret = new StringBuilder("");
-        int flag = 0; // 用于判别转义
-        while (!it.isEOF()) {
-            if (flag == 1) {
-                ret.append(isEscapeSequence(it.peekChar()));
-                flag = 0;
-            } else if (it.peekChar() == '\\') {
-                flag = 1;
-            } else if (it.peekChar() == '\"')
-                break;
-            else
-                ret.append(it.peekChar());
-            it.nextChar();
+        int p = start + 1;
+        // 没有转义的字符串直接从源代码里截出来
+        p = input.indexOf(p, '"', '\\');
+        int c = input.charAt(p);
+        if (c == '"') {
+            setToken(TokenType.STRING_LITEREAL, input.substring(start + 1, p), start, p + 1);
+            return;
+        }
+
+        // 有转义时把转义之间的各段分别截出来，UTF-8 字符不会被拆开
+        StringBuilder ret = new StringBuilder(p - start + 16);
+        int from = start + 1;
+        while (c == '\\') {
+            ret.append(input.substring(from, p));
+            ret.append(isEscapeSequence(input.charAt(p + 1), p + 1));
+            from = p + 2;
+            p = input.indexOf(from, '"', '\\');
+            c = input.charAt(p);
         }
         // 退出时代表正常结束或者识别错误
         // 正常结束时下一位应为"
-        // 否则是提前出现"或者\单独出现，错误
-        if (it.peekChar() == '"') {
-            it.nextChar();
-            return new Token(TokenType.STRING_LITEREAL, ret, prePos, it.currentPos());
+        // 否则是输入提前结束，错误
+        if (c == '"') {
+            ret.append(input.substring(from, p));
+            setToken(TokenType.STRING_LITEREAL, ret.toString(), start, p + 1);
+            return;
         }
-        throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+        throw invalidInput(p);
     }
 
-    private Token lexChar() throws TokenizeError {
-        Pos prePos = it.currentPos();
+    private void lexChar() throws TokenizeError {
+        int start = it.currentOffset();
         it.nextChar();
-        char ret;
+        int ret;
         if (it.peekChar() == '\\') {
             it.nextChar();
-            ret = isEscapeSequence(it.nextChar());
+            char c = it.nextChar();
+            ret = isEscapeSequence(c, it.currentOffset());
         } else if (it.peekChar() == '\'')
             throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         else {
-
-            ret = it.peekChar();
-            it.nextChar();
+            // 按 UTF-8 解码出一个字符，输入结束时和原来一样是 0
+            int offset = it.currentOffset();
+            int c = input.codePointAt(offset);
+            if (c == SourceInput.MALFORMED)
+                throw invalidInput(offset + 1);
+            ret = Math.max(c, 0);
+            it.advanceTo(offset + SourceInput.utf8Length(c));
         }
         it.nextChar();
-        return new Token(TokenType.CHAR_LITEREAL, (int) ret, prePos, it.currentPos());
+        tokenBits = ret;
+        setToken(TokenType.CHAR_LITEREAL, null, start, it.currentOffset());
     }
 
-    private char isEscapeSequence(char c) throws TokenizeError {
+    /**
+     * @param offset 出错时报告 offset 前一个字符的位置
+     */
+    private char isEscapeSequence(int c, int offset) throws TokenizeError {
         if (c == '\\')
             return '\\';
         else if (c == 'r')
@@ -110,208 +248,180 @@ public class Tokenizer {
         else if (c == '\'')
             return '\'';
         else
-            throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+            throw invalidInput(offset);
     }
 
-    private Token lexUIntOrDouble() throws TokenizeError {
-        // 请填空：
-        // 直到查看下一个字符不是数字为止:
-        // -- 前进一个字符，并存储这个字符
-        //
-        // 解析存储的字符串为无符号整数
-        // 解析成功则返回无符号整数类型的token，否则返回编译错误
+    private void lexUIntOrDouble(int start) throws TokenizeError {
+        // 一边移动指针一边把数字累加到 long 里，不构造字符串
         //
         // Token 的 Value 应填写数字的值
-        Pos prePos = it.currentPos();
-        StringBuilder ret = new StringBuilder("");
-        ret.append(lexDigit());
-        if (it.peekChar() == '.') {
-            ret.append(it.peekChar());
-            it.nextChar();
-            ret.append(lexDigit());
-            if (it.peekChar() == 'e' || it.peekChar() == 'E') {
-                ret.append(it.peekChar());
-                it.nextChar();
-                if (it.peekChar() == '+' || it.peekChar() == '-') {
-                    ret.append(it.peekChar());
-                    it.nextChar();
-                }
-                ret.append(lexDigit());
-            }
-            return new Token(TokenType.DOUBLE_LITERAL, Double.parseDouble(ret.toString()), prePos, it.currentPos());
+        int p = start;
+        long value = 0;
+        boolean overflow = false;
+        int c;
+        while (CharClass.isDigit(c = input.charAt(p))) {
+            int digit = c - '0';
+            // 后面可能是小数点，所以溢出时先记下来
+            if (value > (Long.MAX_VALUE - digit) / 10)
+                overflow = true;
+            value = value * 10 + digit;
+            p++;
         }
-        return new Token(TokenType.Uint_LITERAL, Long.parseLong(ret.toString()), prePos, it.currentPos());
+        if (c != '.') {
+            if (overflow)
+                throw new TokenizeError(ErrorCode.IntegerOverflow, input.posOf(start));
+            tokenBits = value;
+            setToken(TokenType.Uint_LITERAL, null, start, p);
+            return;
+        }
+        lexDouble(start, p);
     }
 
-    private String lexDigit() throws TokenizeError {
-        StringBuilder ret = new StringBuilder("");
-        boolean flag = true; // 用于记录是否进入循环
-        while (!it.isEOF() && Character.isDigit(it.peekChar())) {
-            flag = false;
-            ret.append(it.peekChar());
-            it.nextChar();
+    // 10^0 到 10^22 都能用 double 精确表示
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+
+    /**
+     * 识别浮点数，start 是整数部分的开头，dot 是小数点
+     * <p>
+     * 有效数字不超过 2^53 且十进制指数不超过 22 时，尾数和 10 的幂都能精确表示成 double，
+     * 一次乘法或除法得到的就是正确舍入的结果（Clinger 快速路径），其余情况交给 Double.parseDouble。
+     */
+    private void lexDouble(int start, int dot) throws TokenizeError {
+        long mantissa = 0;
+        // 尾数装不下时为 true，只能走慢速路径
+        boolean exact = true;
+        for (int p = start; p < dot; p++)
+            exact = exact && (mantissa = accumulate(mantissa, input.charAt(p))) >= 0;
+        int p = lexDigit(dot + 1);
+        for (int q = dot + 1; q < p; q++)
+            exact = exact && (mantissa = accumulate(mantissa, input.charAt(q))) >= 0;
+        int exponent = -(p - dot - 1);
+
+        int c = input.charAt(p);
+        if (c == 'e' || c == 'E') {
+            p++;
+            c = input.charAt(p);
+            boolean negative = c == '-';
+            if (c == '+' || c == '-')
+                p++;
+            int digits = p;
+            p = lexDigit(p);
+            int e = 0;
+            for (; digits < p; digits++) {
+                // 指数大到这个程度结果已经是 0 或无穷了，只需要防止溢出
+                if (e < 100000)
+                    e = e * 10 + input.charAt(digits) - '0';
+            }
+            exponent += negative ? -e : e;
         }
-        if (flag)
-            throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-        return ret.toString();
+
+        double value;
+        if (exact && mantissa <= (1L << 53) && exponent >= -22 && exponent <= 22) {
+            if (exponent >= 0)
+                value = mantissa * POWERS_OF_TEN[exponent];
+            else
+                value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            value = Double.parseDouble(input.substring(start, p));
+        }
+        tokenBits = Double.doubleToRawLongBits(value);
+        setToken(TokenType.DOUBLE_LITERAL, null, start, p);
+    }
+
+    /**
+     * @return 追加一位数字后的尾数，超过 2^53 时返回 -1
+     */
+    private static long accumulate(long mantissa, int c) {
+        long next = mantissa * 10 + (c - '0');
+        return next > (1L << 53) ? -1 : next;
     }
 
-    private Token lexIdentOrKeyword() throws TokenizeError {
-        // 请填空：
+    /**
+     * 跳过一段数字
+     *
+     * @return 数字之后的偏移
+     * @throws TokenizeError 一个数字也没有时
+     */
+    private int lexDigit(int p) throws TokenizeError {
+        int start = p;
+        while (CharClass.isDigit(input.charAt(p)))
+            p++;
+        if (p == start)
+            throw invalidInput(p);
+        return p;
+    }
+
+    private void lexIdentOrKeyword(int start) throws TokenizeError {
         // 直到查看下一个字符不是数字或字母为止:
-        // -- 前进一个字符，并存储这个字符
+        // -- 只移动指针
         //
-        // 尝试将存储的字符串解释为关键字
+        // 尝试将这段字符串解释为关键字
         // -- 如果是关键字，则返回关键字类型的 token
         // -- 否则，返回标识符
         //
         // Token 的 Value 应填写标识符或关键字的字符串
-        Pos prePos = it.currentPos();
-        StringBuilder ret = new StringBuilder("");
-        TokenType type;
-        while (!it.isEOF() && (Character.isAlphabetic(it.peekChar()) || Character.isDigit(it.peekChar()) || it.peekChar() == '_')) {
-            ret.append(it.peekChar());
-            it.nextChar();
-        }
+        int p = start;
+        int c;
+        while (CharClass.isIdentPart(c = input.codePointAt(p)))
+            p += SourceInput.utf8Length(c);
 
-        switch (ret.toString()) {
-            case "fn":
-                type = TokenType.FN_KW;
-                break;
-            case "let":
-                type = TokenType.LET_KW;
-                break;
-            case "const":
-                type = TokenType.CONST_KW;
-                break;
-            case "as":
-                type = TokenType.AS_KW;
-                break;
-            case "while":
-                type = TokenType.WHILE_KW;
-                break;
-            case "if":
-                type = TokenType.IF_KW;
-                break;
-            case "else":
-                type = TokenType.ELSE_KW;
-                break;
-            case "return":
-                type = TokenType.RETURN_KW;
-                break;
-            case "break":
-                type = TokenType.BREAK_KW;
-                break;
-            case "continue":
-                type = TokenType.CONTINUE_KW;
-                break;
-            case "int":
-                type = TokenType.INT_KW;
-                break;
-            case "double":
-                type = TokenType.DOUBLE_KW;
-                break;
-            case "void":
-                type = TokenType.VOID_KW;
-                break;
-            default:
-                type = TokenType.IDENT;
-                break;
+        // 关键字直接在源代码上比较，标识符交给 interner 编号，只有第一次出现时才构造字符串
+        int keyword = Keywords.find(input, start, p - start);
+        if (keyword >= 0) {
+            setToken(Keywords.type(keyword), Keywords.spelling(keyword), start, p);
+        } else {
+            tokenBits = interner.intern(input, start, p);
+            setToken(TokenType.IDENT, null, start, p);
         }
-        return new Token(type, ret.toString(), prePos, it.currentPos());
     }
 
-    private Token lexOperatorOrUnknown() throws TokenizeError {
-        switch (it.peekChar()) {
-            case '+':
-                it.nextChar();
-                return new Token(TokenType.PLUS, '+', it.previousPos(), it.currentPos());
-            case '-':
-                // 填入返回语句
-                it.nextChar();
-                if (it.peekChar() == '>') {
-                    it.nextChar();
-                    return new Token(TokenType.ARROW, "->", it.previousPos(), it.currentPos());
-                }
-                return new Token(TokenType.MINUS, '-', it.previousPos(), it.currentPos());
-            case '*':
-                // 填入返回语句
-                it.nextChar();
-                return new Token(TokenType.MUL, '*', it.previousPos(), it.currentPos());
-            case ':':
-                it.nextChar();
-                return new Token(TokenType.COLON, ':', it.previousPos(), it.currentPos());
-            case '/':
-                // 填入返回语句
-                it.nextChar();
-                if (it.peekChar() == '/') {
-                    skipComment();
-                    return new Token(TokenType.COMMENT, "xxx", it.previousPos(), it.currentPos());
-                } else
-                    return new Token(TokenType.DIV, '/', it.previousPos(), it.currentPos());
-            case '=':
-                // 填入返回语句
-                it.nextChar();
-                if (it.peekChar() == '=') {
-                    it.nextChar();
-                    return new Token(TokenType.EQ, "==", it.previousPos(), it.currentPos());
-                }
-                return new Token(TokenType.ASSIGN, '=', it.previousPos(), it.currentPos());
-            case '!':
-                it.nextChar();
-                if (it.peekChar() == '=') {
-                    it.nextChar();
-                    return new Token(TokenType.NEQ, "!=", it.previousPos(), it.currentPos());
-                }
-                throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-            case '<':
-                it.nextChar();
-                if (it.peekChar() == '=') {
-                    it.nextChar();
-                    return new Token(TokenType.LE, "<=", it.previousPos(), it.currentPos());
-                }
-                return new Token(TokenType.LT, '<', it.previousPos(), it.currentPos());
-            case '>':
-                it.nextChar();
-                if (it.peekChar() == '=') {
-                    it.nextChar();
-                    return new Token(TokenType.GE, ">=", it.previousPos(), it.currentPos());
-                }
-                return new Token(TokenType.GT, '>', it.previousPos(), it.currentPos());
-            case ',':
-                it.nextChar();
-                return new Token(TokenType.COMMA, ',', it.previousPos(), it.currentPos());
-            case '"':
-                it.nextChar();
-                return new Token(TokenType.COLON, ';', it.previousPos(), it.currentPos());
-            case ';':
-                it.nextChar();
-                return new Token(TokenType.SEMICOLON, ';', it.previousPos(), it.currentPos());
-            case '(':
-                it.nextChar();
-                return new Token(TokenType.L_PAREN, '(', it.previousPos(), it.currentPos());
-            case ')':
-                it.nextChar();
-                return new Token(TokenType.R_PAREN, ')', it.previousPos(), it.currentPos());
-            case '{':
-                it.nextChar();
-                return new Token(TokenType.L_BRACE, '{', it.previousPos(), it.currentPos());
-            case '}':
-                it.nextChar();
-                return new Token(TokenType.R_BRACE, '}', it.previousPos(), it.currentPos());
-            default:
-                // 不认识这个输入，摸了
-                throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+    private void lexOperatorOrUnknown(int p) throws TokenizeError {
+        int c = input.charAt(p);
+        int state = c >= 0 && c < 128 ? OP_START[c] : OP_NONE;
+        if (state == OP_NONE) {
+            // 不认识这个输入，摸了
+            throw invalidInput(p);
+        }
+        int end = p + 1;
+        c = input.charAt(end);
+        if (c >= 0 && c < 128 && OP_NEXT[state][c] != OP_NONE) {
+            state = OP_NEXT[state][c];
+            end++;
         }
+        TokenType type = OP_ACCEPT[state];
+        if (type == null) {
+            // 单独的 !
+            throw invalidInput(end);
+        }
+        if (type == TokenType.COMMENT) {
+            skipComment(end - 1);
+            tokenType = TokenType.COMMENT;
+            return;
+        }
+        // 起始位置沿用原来的 previousPos，两个字符的运算符是第二个字符
+        setToken(type, OP_VALUE[state], end - 1, end);
     }
 
-    private void skipComment() {
-        while (it.nextChar() != '\n') ;
+    /**
+     * 跳到 p 所在行的下一行
+     */
+    private void skipComment(int p) {
+        p = input.indexOf(p, '\n', '\n');
+        if (input.charAt(p) == '\n')
+            p++;
+        it.advanceTo(p);
     }
 
     private void skipSpaceCharacters() {
-        while (!it.isEOF() && Character.isWhitespace(it.peekChar())) {
-            it.nextChar();
-        }
+        int p = it.currentOffset();
+        // 缩进这样成片的空格一次跳过 8 个，其他空白字符逐个判断
+        int c;
+        while (CharClass.isSpace(c = input.codePointAt(p = input.skip(p, ' '))))
+            p += SourceInput.utf8Length(c);
+        it.advanceTo(p);
+        it.release();
     }
 }
@@ -0,0 +1,44 @@
+package miniplc0java.util;
+
+import java.util.Arrays;
+
+/**
+ * 行首偏移表
+ * <p>
+ * 位置统一用字符偏移表示，只有报错等真正需要行列号的时候才二分查找换算成 {@link Pos}
+ */
+public class LineIndex {
+    // 第 i 行第一个字符的偏移，第 0 行从 0 开始
+    int[] lineStarts = new int[256];
+
+    // 已知的行数
+    int count = 1;
+
+    /**
+     * 记录新的一行从 offset 开始，必须按偏移递增的顺序添加
+     *
+     * @param offset 换行符之后的那个偏移
+     */
+    public void addLineStart(int offset) {
+        if (count == lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, count * 2);
+        }
+        lineStarts[count++] = offset;
+    }
+
+    /**
+     * 把偏移换算成行号和列号
+     */
+    public Pos posOf(int offset) {
+        int lo = 0, hi = count - 1;
+        // 找最后一个行首 <= offset 的行
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStarts[mid] <= offset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return new Pos(lo, offset - lineStarts[lo]);
+    }
+}
@@ -0,0 +1,47 @@
+package miniplc0java.util;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * 调试输出
+ * <p>
+ * 调试信息统一按级别写到标准错误，默认关闭。
+ * 需要拼接字符串的地方先用 {@link #enabled(Level)} 判断，关闭时只多一次比较。
+ */
+public final class Trace {
+    public enum Level {
+        OFF, INFO, DEBUG, TRACE
+    }
+
+    private static Level level = Level.OFF;
+
+    private static PrintStream out = System.err;
+
+    private Trace() {
+    }
+
+    /**
+     * @param name 级别名，不区分大小写，例如 "debug"
+     */
+    public static void setLevel(String name) {
+        setLevel(Level.valueOf(name.toUpperCase(Locale.ROOT)));
+    }
+
+    public static void setLevel(Level level) {
+        Trace.level = level;
+    }
+
+    public static void setOutput(PrintStream out) {
+        Trace.out = out;
+    }
+
+    public static boolean enabled(Level level) {
+        return level.compareTo(Trace.level) <= 0 && level != Level.OFF;
+    }
+
+    public static void log(Level level, String message) {
+        if (enabled(level))
+            out.println("[" + level.name().toLowerCase(Locale.ROOT) + "] " + message);
+    }
+}
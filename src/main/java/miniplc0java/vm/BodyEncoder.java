@@ -0,0 +1,116 @@
+package miniplc0java.vm;
+
+import miniplc0java.analyser.Function;
+import miniplc0java.instruction.Instruction;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 把函数体的指令编码成字节
+ * <p>
+ * 流水线模式下代码生成每完成一个函数就交给 {@link #submit(Function)}，在单独的线程里编码，
+ * 和后面的分析同时进行；{@link OutPutBinary} 输出时按顺序取结果，没有交过来的函数当场编码。
+ */
+public class BodyEncoder {
+    // 编码的线程，第一次提交时才建立
+    private ExecutorService thread;
+
+    // 只在分析的线程里读写
+    private final HashMap<Function, Future<byte[]>> bodies = new HashMap<>();
+
+    // 提交时的指令数，函数体清空之后输出仍然要用
+    private final HashMap<Function, Integer> counts = new HashMap<>();
+
+    // 编码之后是否清空函数体的指令
+    private final boolean releaseBodies;
+
+    public BodyEncoder() {
+        this(false);
+    }
+
+    /**
+     * @param releaseBodies 编码之后清空函数体，只留下字节，之后 {@link Function#getBody()} 是空的
+     */
+    public BodyEncoder(boolean releaseBodies) {
+        this.releaseBodies = releaseBodies;
+    }
+
+    /**
+     * 交给编码线程，之后不能再修改这个函数
+     */
+    public void submit(Function function) {
+        if (thread == null) {
+            thread = Executors.newSingleThreadExecutor(task -> {
+                var encoder = new Thread(task, "encoder");
+                encoder.setDaemon(true);
+                return encoder;
+            });
+        }
+        counts.put(function, function.getBody().size());
+        bodies.put(function, thread.submit(() -> {
+            byte[] bytes = encode(function);
+            if (releaseBodies) {
+                function.getBody().clear();
+                function.getBody().trimToSize();
+            }
+            return bytes;
+        }));
+    }
+
+    /**
+     * @return 函数体的指令数
+     */
+    public int count(Function function) {
+        Integer count = counts.get(function);
+        return count != null ? count : function.getBody().size();
+    }
+
+    /**
+     * 取出之后不再保留
+     *
+     * @return 编码好的函数体，还没编码完时等待
+     */
+    public byte[] get(Function function) {
+        var body = bodies.remove(function);
+        if (body == null)
+            return encode(function);
+        try {
+            return body.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void shutdown() {
+        if (thread != null)
+            thread.shutdown();
+    }
+
+    /**
+     * 操作码一个字节，u32 参数四个字节，u64 和浮点参数八个字节，都是大端
+     */
+    static byte[] encode(Function function) {
+        int size = 0;
+        for (Instruction instruction : function.getBody())
+            size += instruction.getType() == 0 ? 1 : instruction.getType() == 1 ? 5 : 9;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Instruction instruction : function.getBody()) {
+            buffer.put((byte) instruction.getOpt().getOptnum());
+            if (instruction.getType() == 1)
+                buffer.putInt((Integer) instruction.getX());
+            else if (instruction.getType() == 2) {
+                if (instruction.getX() instanceof Double)
+                    buffer.putDouble((Double) instruction.getX());
+                else
+                    buffer.putLong((Long) instruction.getX());
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -5,10 +5,13 @@ import miniplc0java.analyser.Function;
 import miniplc0java.analyser.SymbolEntry;
 import miniplc0java.analyser.SymbolTable;
 import miniplc0java.analyser.SymbolType;
-import miniplc0java.instruction.Instruction;
-import miniplc0java.instruction.Operation;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class OutPutBinary {
@@ -16,105 +19,99 @@ public class OutPutBinary {
     LinkedHashMap<String, Function> functionTables;
     List<Byte> output;
 
+    // 函数体的编码，流水线模式下已经在编码线程里完成
+    BodyEncoder encoder;
+
     int magic = 0x72303b3e;
     int version = 0x00000001;
 
     public OutPutBinary(SymbolTable table, LinkedHashMap<String, Function> funcTable) {
+        this(table, funcTable, new BodyEncoder());
+    }
+
+    public OutPutBinary(SymbolTable table, LinkedHashMap<String, Function> funcTable, BodyEncoder encoder) {
         this.symbolTable = table;
         this.functionTables = funcTable;
+        this.encoder = encoder;
         output = new ArrayList<>();
     }
 
     public List<Byte> generate() {
+        var bytes = new ByteArrayOutputStream();
+        try {
+            writeTo(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (byte b : bytes.toByteArray())
+            output.add(b);
+        return output;
+    }
+
+    /**
+     * 直接写到 out，函数体取出一个写一个，不在内存里攒整个输出
+     */
+    public void writeTo(OutputStream out) throws IOException {
         // 魔数
-        List<Byte> magic = int2bytes(4, this.magic);
-        output.addAll(magic);
+        write(out, int2bytes(4, this.magic));
 
         // 版本号
-        List<Byte> version = int2bytes(4, this.version);
-        output.addAll(version);
+        write(out, int2bytes(4, this.version));
 
         // 全局变量表
         LinkedHashMap<String, SymbolEntry> globals = symbolTable.getSymbolTable();
 
-        List<Byte> globalCount = int2bytes(4, globals.size());
-        output.addAll(globalCount);
+        write(out, int2bytes(4, globals.size()));
 
         for (Map.Entry<String, SymbolEntry> stringSymbolEntryEntry : globals.entrySet()) {
             var entry = (Map.Entry) stringSymbolEntryEntry;
             SymbolEntry oneGlobalSymbol = (SymbolEntry) entry.getValue();
-//            System.out.println(oneGlobalSymbol.toString());
             List<Byte> globalIsConst;
             if (oneGlobalSymbol.isConstant())
                 globalIsConst = int2bytes(1, 1);
             else
                 globalIsConst = int2bytes(1, 0);
 
-            output.addAll(globalIsConst);
+            write(out, globalIsConst);
 
             List<Byte> globalValue = getValueByte(oneGlobalSymbol);
 
-            List<Byte> globalValueCount = int2bytes(4, globalValue.size());
-            output.addAll(globalValueCount);
+            write(out, int2bytes(4, globalValue.size()));
 
-            output.addAll(globalValue);
+            write(out, globalValue);
         }
 
         // 函数列表
 
-        List<Byte> functions_count = int2bytes(4, functionTables.size());
-        output.addAll(functions_count);
+        write(out, int2bytes(4, functionTables.size()));
 
         for (Map.Entry<String, Function> stringSymbolEntryEntry : functionTables.entrySet()) {
             var entry = (Map.Entry) stringSymbolEntryEntry;
             Function oneFunction = (Function) entry.getValue();
-//            System.out.println(oneFunction.toString());
             // 函数名
-            List<Byte> name = int2bytes(4, oneFunction.getOrder());
-            output.addAll(name);
+            write(out, int2bytes(4, oneFunction.getOrder()));
 
             // 返回值
-            List<Byte> retSlots = int2bytes(4, oneFunction.getRet_slots());
-            output.addAll(retSlots);
+            write(out, int2bytes(4, oneFunction.getRet_slots()));
 
             // 参数
-            List<Byte> paramsSlots = int2bytes(4, oneFunction.getParam_slots());
-            output.addAll(paramsSlots);
+            write(out, int2bytes(4, oneFunction.getParam_slots()));
 
             // 局部变量
-            List<Byte> locSlots = int2bytes(4, oneFunction.getLoc_slots());
-            output.addAll(locSlots);
+            write(out, int2bytes(4, oneFunction.getLoc_slots()));
 
-            // 函数体指令
-            ArrayList<Instruction> instructions = oneFunction.getBody();
-            List<Byte> bodyCount = int2bytes(4, instructions.size());
-            output.addAll(bodyCount);
+            // 函数体指令，函数体可能已经在编码之后清空
+            write(out, int2bytes(4, encoder.count(oneFunction)));
 
             // 指令集
-            for (Instruction instruction : instructions) {
-                // type
-                Operation opt = instruction.getOpt();
-//                System.out.println(opt.getOptnum());
-                List<Byte> type = int2bytes(1, opt.getOptnum());
-                output.addAll(type);
-
-//                System.out.println(instruction.toString());
-                if (instruction.getType() > 0) {
-                    List<Byte> x;
-//                    System.out.println(instruction.getX());
-                    if (instruction.getType() == 1)
-                        x = int2bytes(4, (int) instruction.getX());
-                    else {
-                        if (instruction.getX().getClass() == Double.class)
-                            x = handleDouble((Double) instruction.getX());
-                        else
-                            x = long2bytes(8, (long) instruction.getX());
-                    }
-                    output.addAll(x);
-                }
-            }
+            out.write(encoder.get(oneFunction));
         }
-        return output;
+        encoder.shutdown();
+    }
+
+    private static void write(OutputStream out, List<Byte> bytes) throws IOException {
+        for (Byte b : bytes)
+            out.write(b);
     }
 
     private List<Byte> getValueByte(SymbolEntry globalSymbol) {
@@ -123,7 +120,7 @@ public class OutPutBinary {
         if (globalSymbol.getSymbolType() == SymbolType.Function || globalSymbol.getSymbolType() == SymbolType.GLOBAL_STRING)
             bytes = String2bytes(globalSymbol.getValue());
         else
-            bytes = long2bytes(8, 0);
+            bytes = long2bytesLittleEndian(globalSymbol.getInitialValue());
         return bytes;
     }
 
@@ -133,12 +130,11 @@ public class OutPutBinary {
         return AB;
     }
 
+    // 字符串常量按 UTF-8 写入，和源代码里的字节一致
     private List<Byte> String2bytes(String valueString) {
         List<Byte> AB = new ArrayList<>();
-        for (int i = 0; i < valueString.length(); i++) {
-            char ch = valueString.charAt(i);
-            AB.add((byte) (ch & 0xff));
-        }
+        for (byte b : valueString.getBytes(StandardCharsets.UTF_8))
+            AB.add(b);
         return AB;
     }
 
@@ -151,6 +147,16 @@ public class OutPutBinary {
         return bytes;
     }
 
+    /**
+     * 全局变量的值按虚拟机内存的字节顺序，低位在前，load64 读出的才是这个值
+     */
+    private List<Byte> long2bytesLittleEndian(long target) {
+        ArrayList<Byte> bytes = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            bytes.add((byte) (target >> (i * 8)));
+        return bytes;
+    }
+
     public ArrayList<Byte> handleDouble(double num) {
         ByteBuffer buffer = ByteBuffer.allocate(8);
         buffer.putDouble(0, num);
@@ -3,15 +3,26 @@ package miniplc0java;
 import miniplc0java.analyser.Analyser;
 import miniplc0java.analyser.SymbolEntry;
 import miniplc0java.analyser.SymbolTable;
+import miniplc0java.error.CompileError;
+import miniplc0java.error.Diagnostics;
+import miniplc0java.error.ErrorCode;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.SourceInput;
 import miniplc0java.tokenizer.StringIter;
 import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
 import miniplc0java.tokenizer.TokenType;
 import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.BodyEncoder;
 import miniplc0java.vm.OutPutBinary;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
+import java.util.function.Consumer;
 
 import static org.junit.Assert.*;
 
@@ -20,12 +31,12 @@ public class AnalyserTest {
 
     @Test
     public void test() throws Exception {
-        InputStream input;
+        SourceInput input;
         String inputFileName = "D:\\北京航空航天大学\\大三学习资料\\编译原理\\c0\\src\\main\\java\\miniplc0java\\in.txt";
         String outputFileName = "D:\\北京航空航天大学\\大三学习资料\\编译原理\\c0\\src\\main\\java\\miniplc0java\\out.o0";
         try {
-            input = new FileInputStream(inputFileName);
-        } catch (FileNotFoundException e) {
+            input = SourceInput.fromFile(inputFileName);
+        } catch (NoSuchFileException e) {
             System.err.println("Cannot find input file.");
             e.printStackTrace();
             System.exit(2);
@@ -43,9 +54,7 @@ public class AnalyserTest {
             return;
         }
 
-        Scanner scanner;
-        scanner = new Scanner(input);
-        var iter = new StringIter(scanner);
+        var iter = new StringIter(input);
         var tokenizer = tokenize(iter);
 
         var analyzer = new Analyser(tokenizer);
@@ -57,6 +66,258 @@ public class AnalyserTest {
             output.write(b);
     }
 
+    @Test
+    public void deeplyNestedExpression() throws Exception {
+        // 表达式不再递归分析，很深的嵌套也不会栈溢出
+        int depth = 100000;
+        var source = new StringBuilder("fn main() -> void { let x: int = ");
+        for (int i = 0; i < depth; i++)
+            source.append("-(");
+        source.append('1');
+        for (int i = 0; i < depth; i++)
+            source.append(')');
+        source.append("; }");
+        var analyzer = compile(source.toString());
+        assertNotNull(analyzer.funcTable.get("main"));
+    }
+
+    @Test
+    public void recoverReportsAllErrors() throws Exception {
+        // 恢复模式下跳过出错的语句，一次报告所有错误和它们的位置
+        var source = "fn main() -> void {\n"
+                + "    let x: int = ;\n"
+                + "    y = 1;\n"
+                + "    break;\n"
+                + "}\n";
+        var input = SourceInput.fromStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+        var tokenizer = tokenize(new StringIter(input));
+        var tokens = TokenBuffer.lex(tokenizer);
+        var diagnostics = new Diagnostics(tokens::posOf, true);
+
+        try {
+            new Analyser(tokenizer, tokens, diagnostics).analyse();
+            fail();
+        } catch (CompileError e) {
+            assertSame(diagnostics.getErrors().get(0), e);
+        }
+        var errors = diagnostics.getErrors();
+        assertEquals(3, errors.size());
+        assertEquals(ErrorCode.ExpectedToken, errors.get(0).getErr());
+        assertEquals(ErrorCode.NotDefined, errors.get(1).getErr());
+        assertEquals(2, errors.get(1).getPos().row);
+        assertEquals(ErrorCode.NotWhileDomain, errors.get(2).getErr());
+        assertEquals(3, errors.get(2).getPos().row);
+    }
+
+    @Test
+    public void constantsAreFolded() throws Exception {
+        // 常量表达式只 push 一次结果，除以 0 留给虚拟机
+        var source = "fn main() -> void { let x: int = -(2 * 3 + 1) / 2; let y: double = 1 as double / 0.0; }";
+        var analyzer = compile(source);
+        var body = analyzer.funcTable.get("main").getBody();
+        assertEquals(new Instruction(Operation.push, -3L), body.get(1));
+        assertEquals(new Instruction(Operation.store64), body.get(2));
+        assertEquals(new Instruction(Operation.push, 1.0), body.get(4));
+        assertEquals(new Instruction(Operation.push, 0.0), body.get(5));
+        assertEquals(new Instruction(Operation.divf), body.get(6));
+    }
+
+    @Test
+    public void conditionsBranchOnComparison() throws Exception {
+        // <= 用作条件时不需要 not，大于时直接跳出循环
+        var source = "fn main() -> void { let i: int = 0; while (i <= 3) { i = i + 1; } }";
+        var analyzer = compile(source);
+        var body = analyzer.funcTable.get("main").getBody();
+        assertEquals(17, body.size());
+        assertEquals(new Instruction(Operation.setgt), body.get(7));
+        assertEquals(new Instruction(Operation.brtrue, 7), body.get(8));
+        assertEquals(new Instruction(Operation.br, -13), body.get(15));
+        assertEquals(new Instruction(Operation.ret), body.get(16));
+    }
+
+    @Test
+    public void peepholeInvertsBranchOverBreak() throws Exception {
+        // if 的 br 0 删掉之后，跳过 break 的 brtrue 换成跳出循环的 brfalse，
+        // 它又只跳过循环末尾的 br，再换成跳回循环开始的 brtrue
+        var source = "fn main() -> void { let i: int = 0; while (i < 3) { i = i + 1; if (i == 2) { break; } } }";
+        var analyzer = compile(source, a -> a.setPeephole(true));
+        var body = analyzer.funcTable.get("main").getBody();
+        assertEquals(21, body.size());
+        assertEquals(new Instruction(Operation.brfalse, 11), body.get(8));
+        assertEquals(new Instruction(Operation.cmpi), body.get(18));
+        assertEquals(new Instruction(Operation.brtrue, -17), body.get(19));
+        assertEquals(new Instruction(Operation.ret), body.get(20));
+    }
+
+    @Test
+    public void peepholeFoldsNotIntoBranch() throws Exception {
+        // 字符串的比较没有 cmp，== 生成 not，用作条件时 not、brfalse 换成 brtrue
+        var source = "fn main() -> void { if (\"a\" == \"b\") { putint(1); } }";
+        var analyzer = compile(source, a -> a.setPeephole(true));
+        var body = analyzer.funcTable.get("main").getBody();
+        assertEquals(6, body.size());
+        assertEquals(new Instruction(Operation.brtrue, 2), body.get(2));
+        assertEquals(new Instruction(Operation.ret), body.get(5));
+    }
+
+    @Test
+    public void rotatedLoopTestsAtBottom() throws Exception {
+        // 开始时不成立就跳过循环，末尾成立时跳回循环体，continue 跳到末尾的条件
+        var source = "fn main() -> void { let i: int = 0; while (i < 3) { i = i + 1; if (i == 1) { continue; } } }";
+        var analyzer = compile(source, a -> a.setRotateLoops(true));
+        var body = analyzer.funcTable.get("main").getBody();
+        assertEquals(29, body.size());
+        assertEquals(new Instruction(Operation.brfalse, 19), body.get(8));
+        assertEquals(new Instruction(Operation.br, 1), body.get(20));
+        assertEquals(new Instruction(Operation.setlt), body.get(26));
+        assertEquals(new Instruction(Operation.brtrue, -19), body.get(27));
+        assertEquals(new Instruction(Operation.ret), body.get(28));
+    }
+
+    @Test
+    public void directCallsUseFunctionIndex() throws Exception {
+        // _start 是第 0 个函数，其他函数按定义的顺序编号
+        var source = "fn f() -> void { } fn main() -> void { f(); }";
+        var analyzer = compile(source, a -> a.setDirectCalls(true));
+        assertEquals(new Instruction(Operation.call, 1), analyzer.funcTable.get("main").getBody().get(0));
+        assertEquals(new Instruction(Operation.call, 2), analyzer.funcTable.get("_start").getBody().get(0));
+    }
+
+    @Test
+    public void repeatedStringsArePooled() throws Exception {
+        // 相同的字符串只占一个全局变量，也不占局部变量
+        var source = "fn main() -> void { putstr(\"hi\"); putstr(\"hi\"); putstr(\"ho\"); }";
+        var analyzer = compile(source);
+        assertEquals(4, analyzer.currentTable.getSymbolTable().size());
+        var main = analyzer.funcTable.get("main");
+        assertEquals(0, main.getLoc_slots());
+        assertEquals(new Instruction(Operation.push, 2L), main.getBody().get(0));
+        assertEquals(new Instruction(Operation.push, 2L), main.getBody().get(2));
+        assertEquals(new Instruction(Operation.push, 3L), main.getBody().get(4));
+    }
+
+    @Test
+    public void constantGlobalsAreInitializedStatically() throws Exception {
+        // 初值是常量的全局变量写进全局变量表，_start 只调用 main
+        var source = "let a: int = 2 * 21; const d: double = -1.5; let b: int = a; fn main() -> void { }";
+        var analyzer = compile(source);
+        var globals = analyzer.currentTable.getSymbolTable();
+        assertEquals(42, globals.get("a").getInitialValue());
+        assertEquals(-1.5, Double.longBitsToDouble(globals.get("d").getInitialValue()), 0);
+        assertEquals(0, globals.get("b").getInitialValue());
+        // 只有 b 需要在 _start 里赋值
+        assertEquals(5, analyzer.funcTable.get("_start").getBody().size());
+    }
+
+    @Test
+    public void constantGlobalPayloadIsLittleEndian() throws Exception {
+        // 全局变量表里的值按虚拟机内存的顺序低位在前，长度和其他整数仍然是大端
+        var source = "const x: int = 1; fn main() -> void { }";
+        var analyzer = compile(source);
+        var bytes = new OutPutBinary(analyzer.currentTable, analyzer.funcTable).generate();
+        // magic、version、全局变量个数，然后是 _start 的名字：is_const、长度、6 个字节
+        int x = 4 + 4 + 4 + 1 + 4 + 6;
+        var expected = List.of((byte) 1, (byte) 0, (byte) 0, (byte) 0, (byte) 8,
+                (byte) 1, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 0);
+        assertEquals(expected, bytes.subList(x, x + expected.size()));
+    }
+
+    @Test
+    public void nestedScopesShadowAndRestore() throws Exception {
+        // 内层的同名变量遮住外层的变量和参数，退出内层之后恢复；函数里可以读全局常量
+        var source = "const g: int = 5;\n"
+                + "fn f(a: int) -> int { { let a: double = 1.0; } return a + g; }\n"
+                + "fn main() -> void { let x: int = 1; { let x: double = 2.0; let y: double = x * 2.0; }"
+                + " let z: int = x + 1; putint(f(z)); }";
+        var analyzer = compile(source);
+        var f = analyzer.funcTable.get("f").getBody();
+        assertEquals(new Instruction(Operation.arga, 1), f.get(4));
+        assertEquals(new Instruction(Operation.globa, 1), f.get(6));
+        var main = analyzer.funcTable.get("main").getBody();
+        // 内层的 x 在第 1 个局部变量，退出之后 z 复用这个位置，x 又是第 0 个
+        assertEquals(new Instruction(Operation.loca, 1), main.get(7));
+        assertEquals(new Instruction(Operation.loca, 1), main.get(12));
+        assertEquals(new Instruction(Operation.loca, 0), main.get(13));
+    }
+
+    @Test
+    public void redeclarationInSameScopeIsRejected() throws Exception {
+        // 参数和函数体最外层在同一个域
+        assertEquals(ErrorCode.DuplicateDeclaration,
+                analyseError("fn main() -> void { let x: int = 1; { let x: int = 2; } let x: int = 3; }"));
+        assertEquals(ErrorCode.DuplicateDeclaration,
+                analyseError("fn f(a: int) -> void { let a: int = 1; } fn main() -> void { }"));
+        assertEquals(ErrorCode.DuplicateDeclaration, analyseError("let g: int = 1; const g: int = 2; fn main() -> void { }"));
+    }
+
+    @Test
+    public void variableResultFollowsInitialization() throws Exception {
+        // 变量的值跟着符号：赋值之后才能读，内层没有初值的同名变量不能读
+        assertEquals(ErrorCode.NotInitialized, analyseError("fn main() -> void { let x: int; let y: int = x + 1; }"));
+        assertEquals(ErrorCode.NotInitialized,
+                analyseError("fn main() -> void { let x: int = 1; { let x: int; putint(x + 1); } }"));
+        assertNull(analyseError("fn main() -> void { let x: int; x = 1; let y: int = x + 1; }"));
+    }
+
+    @Test
+    public void streamingCompileReleasesBodies() throws Exception {
+        // 流式编译逐个全局项生成并输出，结果和整个文件一起编译相同，编码之后函数体不再保留指令
+        var sb = new StringBuilder("let total: int = 0;\n");
+        for (int i = 0; i < 200; i++)
+            sb.append("fn f").append(i).append("(a: int) -> int { let s: int = a; while s < 10 { s = s + ").append(i)
+                    .append("; } putstr(\"f").append(i).append("\"); return s; }\nconst c").append(i).append(": int = ")
+                    .append(i).append(";\n");
+        sb.append("fn main() -> void { total = f0(1); putint(total); }\n");
+        var source = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        var whole = compile(sb.toString());
+        var expected = new OutPutBinary(whole.currentTable, whole.funcTable).generate();
+
+        var tokenizer = tokenize(new StringIter(SourceInput.streaming(new ByteArrayInputStream(source))));
+        var analyzer = new Analyser(tokenizer, TokenBuffer.onDemand(tokenizer));
+        var encoder = new BodyEncoder(true);
+        analyzer.analysePipelined(encoder::submit);
+        var output = new ByteArrayOutputStream();
+        new OutPutBinary(analyzer.currentTable, analyzer.funcTable, encoder).writeTo(output);
+
+        var actual = new ArrayList<Byte>();
+        for (byte b : output.toByteArray())
+            actual.add(b);
+        assertEquals(expected, actual);
+        for (var function : analyzer.funcTable.values())
+            assertTrue(function.getName(), function.getBody().isEmpty());
+    }
+
+    /**
+     * 分析 source，生成的函数在返回的 analyser 的 funcTable 里
+     *
+     * @param options 分析之前设置优化选项
+     */
+    private static Analyser compile(String source, Consumer<Analyser> options) throws Exception {
+        var input = SourceInput.fromStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+        var analyzer = new Analyser(tokenize(new StringIter(input)));
+        options.accept(analyzer);
+        analyzer.analyse();
+        return analyzer;
+    }
+
+    private static Analyser compile(String source) throws Exception {
+        return compile(source, analyzer -> {
+        });
+    }
+
+    /**
+     * @return 分析 source 时的错误，没有错误时返回 null
+     */
+    private static ErrorCode analyseError(String source) throws Exception {
+        try {
+            compile(source);
+            return null;
+        } catch (CompileError e) {
+            return e.getErr();
+        }
+    }
+
     private static Tokenizer tokenize(StringIter iter) {
         var tokenizer = new Tokenizer(iter);
         return tokenizer;
@@ -0,0 +1,262 @@
+package miniplc0java;
+
+import miniplc0java.tokenizer.SourceInput;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.util.Trace;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 简单的计时程序，不属于单元测试，用 gradle bench 运行
+ * <p>
+ * 生成一段大小约为给定 MB 数的源代码，每项先预热再计时若干次，输出中位数：
+ * <ul>
+ * <li>词法分析的吞吐量（MB/s）：换成字符类表之前的识别方式（{@link LegacyLexer}）、逐个 nextToken、
+ * 按列存储、按需识别和并行识别</li>
+ * <li>词法分析每读入一个字节分配的内存（B/byte）：空白、运算符和关键字三种输入，
+ * 用 ThreadMXBean 统计预热之后运行一次时这个线程分配的字节数，源代码本身不算；并行识别在其他线程里分配，不统计</li>
+ * <li>App 编译一个文件的耗时：--trace 取 off、info、debug 和 trace，调试输出丢弃</li>
+ * </ul>
+ * 前两项读同一个 {@link SourceInput}、都构造 Token 对象，计时之前先检查两者识别出的 token 相同。
+ * 除了字符分类和运算符的识别方式，两者还有这些差别：nextToken 按 UTF-8 解码标识符和空白、
+ * 把标识符交给 Interner 编号、自己把数字转换成值，{@link LegacyLexer} 只认 ASCII、每个标识符截出一个字符串。
+ * <p>
+ * 参数：源代码大小（MB，默认 8）、计时次数（默认 10）
+ */
+public class Benchmark {
+    // 计时之前运行的次数
+    private static final int WARMUP = 3;
+
+    private interface Task {
+        void run(byte[] source) throws Exception;
+    }
+
+    private interface Lexer {
+        void run(SourceInput input) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        byte[] source = generate(megabytes << 20);
+        System.out.printf("source: %.1f MB, %d runs%n", source.length / 1048576.0, runs);
+
+        checkLegacy(source);
+        String[] names = {"lex: legacy dispatch", "lex: nextToken", "lex: TokenBuffer.lex",
+                "lex: TokenBuffer.onDemand", "lex: TokenBuffer.lexParallel"};
+        Task[] tasks = {
+                s -> lexLegacy(input(s)),
+                s -> lexTokens(input(s)),
+                s -> TokenBuffer.lex(tokenizer(input(s))),
+                s -> lexOnDemand(input(s)),
+                s -> TokenBuffer.lexParallel(tokenizer(input(s)), ForkJoinPool.commonPool()),
+        };
+        throughput(names, source, runs, tasks);
+
+        String[] kinds = {"whitespace", "operators", "keywords"};
+        byte[][] inputs = {whitespace(source.length), operators(source.length), keywords(source.length)};
+        Lexer[] lexers = {
+                Benchmark::lexLegacy,
+                Benchmark::lexTokens,
+                in -> TokenBuffer.lex(tokenizer(in)),
+                Benchmark::lexOnDemand,
+        };
+        for (int k = 0; k < kinds.length; k++) {
+            for (int l = 0; l < lexers.length; l++) {
+                System.out.printf("%-40s %8.3f B/byte%n", "alloc: " + kinds[k] + ", " + names[l].substring(5),
+                        allocation(inputs[k], lexers[l]));
+            }
+        }
+
+        // 几个级别轮流运行，JIT 和 GC 的影响平摊到每个级别上
+        Path input = Files.createTempFile("bench", ".c0");
+        Path output = Files.createTempFile("bench", ".o0");
+        Files.write(input, source);
+        Trace.setOutput(new PrintStream(OutputStream.nullOutputStream()));
+        String[] levels = {"off", "info", "debug", "trace"};
+        long[][] times = new long[levels.length][runs];
+        for (int i = -WARMUP; i < runs; i++) {
+            for (int l = 0; l < levels.length; l++) {
+                String[] appArgs = {input.toString(), "-o", output.toString(), "--trace", levels[l]};
+                long time = time(source, s -> App.main(appArgs));
+                if (i >= 0)
+                    times[l][i] = time;
+            }
+        }
+        Trace.setOutput(System.err);
+        Files.delete(input);
+        Files.delete(output);
+        for (int l = 0; l < levels.length; l++)
+            System.out.printf("%-40s %8.1f ms%n", "compile: --trace " + levels[l], median(times[l]) * 1000);
+    }
+
+    private static SourceInput input(byte[] source) throws IOException {
+        return SourceInput.fromStream(new ByteArrayInputStream(source));
+    }
+
+    private static Tokenizer tokenizer(SourceInput input) {
+        return new Tokenizer(new StringIter(input));
+    }
+
+    private static void lexTokens(SourceInput input) throws Exception {
+        var tokenizer = tokenizer(input);
+        Token token;
+        do {
+            token = tokenizer.nextToken();
+        } while (token.getTokenType() != TokenType.EOF);
+    }
+
+    private static void lexLegacy(SourceInput input) throws Exception {
+        var lexer = new LegacyLexer(input);
+        Token token;
+        do {
+            token = lexer.nextToken();
+        } while (token.getTokenType() != TokenType.EOF);
+    }
+
+    /**
+     * 两种方式识别出的 token 的类型、位置和值都相同，否则两者的吞吐量没有可比性
+     */
+    private static void checkLegacy(byte[] source) throws Exception {
+        var lexer = new LegacyLexer(input(source));
+        var tokenizer = tokenizer(input(source));
+        Token expected;
+        Token actual;
+        do {
+            expected = tokenizer.nextToken();
+            actual = lexer.nextToken();
+            if (!expected.equals(actual))
+                throw new IllegalStateException("legacy lexer differs: " + expected + " / " + actual);
+        } while (expected.getTokenType() != TokenType.EOF);
+    }
+
+    private static void lexOnDemand(SourceInput input) throws Exception {
+        var tokens = TokenBuffer.onDemand(tokenizer(input));
+        for (int i = 0; tokens.getType(i) != TokenType.EOF; i++) {
+        }
+    }
+
+    /**
+     * 几项轮流运行，JIT 和 GC 的影响平摊到每一项上，单独先后运行时先运行的一项常常快得多
+     */
+    private static void throughput(String[] names, byte[] source, int runs, Task[] tasks) throws Exception {
+        long[][] times = new long[tasks.length][runs];
+        for (int i = -WARMUP; i < runs; i++) {
+            for (int t = 0; t < tasks.length; t++) {
+                long time = time(source, tasks[t]);
+                if (i >= 0)
+                    times[t][i] = time;
+            }
+        }
+        for (int t = 0; t < tasks.length; t++)
+            System.out.printf("%-40s %8.1f MB/s%n", names[t], source.length / 1048576.0 / median(times[t]));
+    }
+
+    /**
+     * 预热之后运行一次，统计这个线程分配的字节数，读入源代码在这之前完成，不计算在内
+     *
+     * @return 每个输入字节分配的字节数
+     */
+    private static double allocation(byte[] source, Lexer lexer) throws Exception {
+        var input = input(source);
+        for (int i = 0; i < WARMUP; i++)
+            lexer.run(input);
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        lexer.run(input);
+        return (threads.getThreadAllocatedBytes(thread) - before) / (double) source.length;
+    }
+
+    /**
+     * @return 运行一次的耗时，单位为纳秒
+     */
+    private static long time(byte[] source, Task task) throws Exception {
+        long start = System.nanoTime();
+        task.run(source);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return 中位数，单位为秒
+     */
+    private static double median(long[] times) {
+        Arrays.sort(times);
+        return times[times.length / 2] / 1e9;
+    }
+
+    /**
+     * 几乎都是空白，每行一个关键字
+     */
+    static byte[] whitespace(int size) {
+        return repeat("fn    \t\t    \n\n        \t    \n    ", size);
+    }
+
+    /**
+     * 所有运算符，中间没有空白
+     */
+    static byte[] operators(int size) {
+        return repeat("+-*/==!=<<=>>=,;(){}:->\n", size);
+    }
+
+    /**
+     * 所有关键字，用空格隔开
+     */
+    static byte[] keywords(int size) {
+        return repeat("fn let const as while if else return break continue int double void\n", size);
+    }
+
+    /**
+     * 把 line 重复到至少 size 字节，只用于词法分析
+     */
+    private static byte[] repeat(String line, int size) {
+        return line.repeat(size / line.length() + 1).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 生成至少 size 字节、语义正确的源代码，包含各种 token、注释、缩进和字符串
+     */
+    static byte[] generate(int size) {
+        var sb = new StringBuilder(size + 1024);
+        sb.append("let total: int = 0;\n");
+        sb.append("const scale: double = 1.5e0;\n");
+        int count = 0;
+        while (sb.length() < size) {
+            sb.append("// function ").append(count).append(" adds up a few numbers\n");
+            sb.append("fn f").append(count).append("(a: int, b: double) -> int {\n");
+            sb.append("    let i: int = 0;\n");
+            sb.append("    let s: int = a;\n");
+            sb.append("    let c: int = 'x';\n");
+            sb.append("    while i < 100 {\n");
+            sb.append("        if s >= 100000 {\n");
+            sb.append("            s = s - 100000; // wrap around\n");
+            sb.append("        } else if s != -1 {\n");
+            sb.append("            s = s + i * 3 / (c - 119);\n");
+            sb.append("        }\n");
+            sb.append("        i = i + 1;\n");
+            sb.append("    }\n");
+            sb.append("    putstr(\"f").append(count).append(" done\\n\");\n");
+            sb.append("    return s + (b * scale) as int;\n");
+            sb.append("}\n\n");
+            count++;
+        }
+        sb.append("fn main() -> void {\n");
+        sb.append("    total = f0(1, 2.25);\n");
+        sb.append("    putint(total);\n");
+        sb.append("}\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
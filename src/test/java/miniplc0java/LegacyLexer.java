@@ -0,0 +1,258 @@
+package miniplc0java;
+
+import miniplc0java.tokenizer.SourceInput;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * 换成字符类表和运算符状态转移表之前的识别方式，只给 {@link Benchmark} 做对比
+ * <p>
+ * 字符用 Character 的方法分类，关键字截出字符串之后用 switch 比较，数字截出字符串之后解析，
+ * 运算符用嵌套的 switch 再看下一个字符。和 Tokenizer 读同一个 {@link SourceInput}，都构造 Token 对象。
+ * 只认 ASCII 的源代码，出错时不报告位置。
+ */
+class LegacyLexer {
+    private final SourceInput input;
+
+    // 下一个要读的字符
+    private int offset;
+
+    LegacyLexer(SourceInput input) {
+        this.input = input;
+    }
+
+    Token nextToken() {
+        Token token;
+        do {
+            int c;
+            while ((c = input.charAt(offset)) >= 0 && Character.isWhitespace(c))
+                offset++;
+            input.release(offset);
+
+            int start = offset;
+            if (c < 0)
+                token = new Token(TokenType.EOF, "", start, start, input);
+            else if (Character.isDigit(c))
+                token = lexUIntOrDouble(start);
+            else if (Character.isAlphabetic(c) || c == '_')
+                token = lexIdentOrKeyword(start);
+            else if (c == '"')
+                token = lexString(start);
+            else if (c == '\'')
+                token = lexChar(start);
+            else
+                token = lexOperatorOrUnknown(start);
+            // 注释返回 null
+        } while (token == null);
+        return token;
+    }
+
+    private Token lexString(int start) {
+        int p = start + 1;
+        int c;
+        while ((c = input.charAt(p)) >= 0 && c != '"' && c != '\\')
+            p++;
+        if (c == '"') {
+            offset = p + 1;
+            return new Token(TokenType.STRING_LITEREAL, input.substring(start + 1, p), start, offset, input);
+        }
+
+        StringBuilder ret = new StringBuilder(input.substring(start + 1, p));
+        while ((c = input.charAt(p)) >= 0 && c != '"') {
+            if (c == '\\') {
+                ret.append(escape(input.charAt(p + 1)));
+                p += 2;
+            } else {
+                ret.append((char) c);
+                p++;
+            }
+        }
+        if (c < 0)
+            throw new IllegalStateException("unterminated string");
+        offset = p + 1;
+        return new Token(TokenType.STRING_LITEREAL, ret.toString(), start, offset, input);
+    }
+
+    private Token lexChar(int start) {
+        int c = input.charAt(start + 1);
+        int p = start + 2;
+        if (c == '\\') {
+            c = escape(input.charAt(p));
+            p++;
+        }
+        if (input.charAt(p) != '\'')
+            throw new IllegalStateException("invalid char literal");
+        offset = p + 1;
+        return new Token(TokenType.CHAR_LITEREAL, c, start, offset, input);
+    }
+
+    private static char escape(int c) {
+        switch (c) {
+            case '\\':
+                return '\\';
+            case 'r':
+                return '\r';
+            case 'n':
+                return '\n';
+            case 't':
+                return '\t';
+            case '"':
+                return '"';
+            case '\'':
+                return '\'';
+            default:
+                throw new IllegalStateException("invalid escape");
+        }
+    }
+
+    private Token lexUIntOrDouble(int start) {
+        int p = lexDigit(start);
+        if (input.charAt(p) != '.') {
+            offset = p;
+            return new Token(TokenType.Uint_LITERAL, Long.parseLong(input.substring(start, p)), start, p, input);
+        }
+        p = lexDigit(p + 1);
+        int c = input.charAt(p);
+        if (c == 'e' || c == 'E') {
+            p++;
+            c = input.charAt(p);
+            if (c == '+' || c == '-')
+                p++;
+            p = lexDigit(p);
+        }
+        offset = p;
+        return new Token(TokenType.DOUBLE_LITERAL, Double.parseDouble(input.substring(start, p)), start, p, input);
+    }
+
+    private int lexDigit(int p) {
+        int start = p;
+        int c;
+        while ((c = input.charAt(p)) >= 0 && Character.isDigit(c))
+            p++;
+        if (p == start)
+            throw new IllegalStateException("digit expected");
+        return p;
+    }
+
+    private Token lexIdentOrKeyword(int start) {
+        int p = start;
+        int c;
+        while ((c = input.charAt(p)) >= 0 && (Character.isAlphabetic(c) || Character.isDigit(c) || c == '_'))
+            p++;
+
+        String ret = input.substring(start, p);
+        TokenType type;
+        switch (ret) {
+            case "fn":
+                type = TokenType.FN_KW;
+                break;
+            case "let":
+                type = TokenType.LET_KW;
+                break;
+            case "const":
+                type = TokenType.CONST_KW;
+                break;
+            case "as":
+                type = TokenType.AS_KW;
+                break;
+            case "while":
+                type = TokenType.WHILE_KW;
+                break;
+            case "if":
+                type = TokenType.IF_KW;
+                break;
+            case "else":
+                type = TokenType.ELSE_KW;
+                break;
+            case "return":
+                type = TokenType.RETURN_KW;
+                break;
+            case "break":
+                type = TokenType.BREAK_KW;
+                break;
+            case "continue":
+                type = TokenType.CONTINUE_KW;
+                break;
+            case "int":
+                type = TokenType.INT_KW;
+                break;
+            case "double":
+                type = TokenType.DOUBLE_KW;
+                break;
+            case "void":
+                type = TokenType.VOID_KW;
+                break;
+            default:
+                type = TokenType.IDENT;
+                break;
+        }
+        offset = p;
+        return new Token(type, ret, start, p, input);
+    }
+
+    /**
+     * @return 识别出的运算符，注释返回 null
+     */
+    private Token lexOperatorOrUnknown(int p) {
+        int next = input.charAt(p + 1);
+        switch (input.charAt(p)) {
+            case '+':
+                return operator(TokenType.PLUS, '+', p, 1);
+            case '-':
+                if (next == '>')
+                    return operator(TokenType.ARROW, "->", p, 2);
+                return operator(TokenType.MINUS, '-', p, 1);
+            case '*':
+                return operator(TokenType.MUL, '*', p, 1);
+            case ':':
+                return operator(TokenType.COLON, ':', p, 1);
+            case '/':
+                if (next == '/') {
+                    int c;
+                    while ((c = input.charAt(p)) >= 0 && c != '\n')
+                        p++;
+                    offset = p;
+                    return null;
+                }
+                return operator(TokenType.DIV, '/', p, 1);
+            case '=':
+                if (next == '=')
+                    return operator(TokenType.EQ, "==", p, 2);
+                return operator(TokenType.ASSIGN, '=', p, 1);
+            case '!':
+                if (next == '=')
+                    return operator(TokenType.NEQ, "!=", p, 2);
+                throw new IllegalStateException("invalid operator");
+            case '<':
+                if (next == '=')
+                    return operator(TokenType.LE, "<=", p, 2);
+                return operator(TokenType.LT, '<', p, 1);
+            case '>':
+                if (next == '=')
+                    return operator(TokenType.GE, ">=", p, 2);
+                return operator(TokenType.GT, '>', p, 1);
+            case ',':
+                return operator(TokenType.COMMA, ',', p, 1);
+            case ';':
+                return operator(TokenType.SEMICOLON, ';', p, 1);
+            case '(':
+                return operator(TokenType.L_PAREN, '(', p, 1);
+            case ')':
+                return operator(TokenType.R_PAREN, ')', p, 1);
+            case '{':
+                return operator(TokenType.L_BRACE, '{', p, 1);
+            case '}':
+                return operator(TokenType.R_BRACE, '}', p, 1);
+            default:
+                throw new IllegalStateException("invalid input");
+        }
+    }
+
+    /**
+     * 和 Tokenizer 一样，运算符的起始位置是最后一个字符
+     */
+    private Token operator(TokenType type, Object value, int start, int length) {
+        offset = start + length;
+        return new Token(type, value, offset - 1, offset, input);
+    }
+}
@@ -1,8 +1,408 @@
 package miniplc0java;
 
+import miniplc0java.error.ErrorCode;
+import miniplc0java.error.TokenizeError;
+import miniplc0java.tokenizer.Interner;
+import miniplc0java.tokenizer.SourceInput;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.Tokenizer;
 import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 import static org.junit.Assert.*;
 
 public class TokenizerTest {
 
+    private static List<Token> tokenize(SourceInput input) throws Exception {
+        var tokenizer = new Tokenizer(new StringIter(input));
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = tokenizer.nextToken();
+            tokens.add(token);
+        } while (token.getTokenType() != TokenType.EOF);
+        return tokens;
+    }
+
+    @Test
+    public void streamingMatchesWholeInput() throws Exception {
+        var sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("let a").append(i).append(": double = ").append(i).append(".5e-1; // comment ").append(i).append('\n');
+            sb.append("putstr(\"line ").append(i).append("\\n\");\n");
+        }
+        byte[] source = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        var whole = tokenize(SourceInput.fromStream(new ByteArrayInputStream(source)));
+        var streamed = tokenize(SourceInput.streaming(new ByteArrayInputStream(source)));
+        assertEquals(whole.size(), streamed.size());
+        for (int i = 0; i < whole.size(); i++) {
+            assertEquals(whole.get(i).toString(), streamed.get(i).toString());
+        }
+    }
+
+    @Test
+    public void positionsAreComputedFromOffsets() throws Exception {
+        byte[] source = "fn\n  let\n\nx".getBytes(StandardCharsets.UTF_8);
+        var tokens = tokenize(SourceInput.fromStream(new ByteArrayInputStream(source)));
+        assertEquals("Pos(row: 0, col: 0)", tokens.get(0).getStartPos().toString());
+        assertEquals("Pos(row: 1, col: 2)", tokens.get(1).getStartPos().toString());
+        assertEquals("Pos(row: 1, col: 5)", tokens.get(1).getEndPos().toString());
+        assertEquals("Pos(row: 3, col: 0)", tokens.get(2).getStartPos().toString());
+        assertEquals(10, tokens.get(2).getStartOffset());
+    }
+
+    @Test
+    public void everyTokenType() throws Exception {
+        String source = "fn let const as while if else return break continue int double void _x1\n"
+                + "12 3.5e-2 \"s\\n\" 'c' + - * / = == != < > <= >= ( ) { } -> , : ; // end\n";
+        var tokens = tokenize(SourceInput.fromStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8))));
+        TokenType[] expected = {
+                TokenType.FN_KW, TokenType.LET_KW, TokenType.CONST_KW, TokenType.AS_KW, TokenType.WHILE_KW,
+                TokenType.IF_KW, TokenType.ELSE_KW, TokenType.RETURN_KW, TokenType.BREAK_KW, TokenType.CONTINUE_KW,
+                TokenType.INT_KW, TokenType.DOUBLE_KW, TokenType.VOID_KW, TokenType.IDENT,
+                TokenType.Uint_LITERAL, TokenType.DOUBLE_LITERAL, TokenType.STRING_LITEREAL, TokenType.CHAR_LITEREAL,
+                TokenType.PLUS, TokenType.MINUS, TokenType.MUL, TokenType.DIV, TokenType.ASSIGN, TokenType.EQ,
+                TokenType.NEQ, TokenType.LT, TokenType.GT, TokenType.LE, TokenType.GE, TokenType.L_PAREN,
+                TokenType.R_PAREN, TokenType.L_BRACE, TokenType.R_BRACE, TokenType.ARROW, TokenType.COMMA,
+                TokenType.COLON, TokenType.SEMICOLON, TokenType.EOF,
+        };
+        assertEquals(expected.length, tokens.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], tokens.get(i).getTokenType());
+        }
+        assertEquals("_x1", tokens.get(13).getValue());
+        assertEquals(12L, tokens.get(14).getValue());
+        assertEquals(0.035, tokens.get(15).getValue());
+        assertEquals("s\n", tokens.get(16).getValue());
+        assertEquals((int) 'c', tokens.get(17).getValue());
+    }
+
+    @Test
+    public void identifiersAreInterned() throws Exception {
+        byte[] source = "abc putint abd abc".getBytes(StandardCharsets.UTF_8);
+        var tokens = tokenize(SourceInput.fromStream(new ByteArrayInputStream(source)));
+        assertEquals(Interner.PUTINT, tokens.get(1).getId());
+        assertEquals(tokens.get(0).getId(), tokens.get(3).getId());
+        assertNotEquals(tokens.get(0).getId(), tokens.get(2).getId());
+        assertFalse(Interner.isStdFunc(tokens.get(0).getId()));
+        assertSame(tokens.get(0).getValue(), tokens.get(3).getValue());
+    }
+
+    @Test
+    public void bufferMatchesTokenizer() throws Exception {
+        byte[] source = "fn f(x: int) -> double { putstr(\"a\\tb\"); return 1.5e2 + 'q' as double; }".getBytes(StandardCharsets.UTF_8);
+        var expected = tokenize(SourceInput.fromStream(new ByteArrayInputStream(source)));
+        var buffer = TokenBuffer.lex(new Tokenizer(new StringIter(SourceInput.fromStream(new ByteArrayInputStream(source)))));
+        assertEquals(expected.size(), buffer.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), buffer.getToken(i));
+        }
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws Exception {
+        var sb = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            if (i % 7 == 0)
+                sb.append("putstr(\"several\nlines // ").append(i).append("\n\");\n");
+            else
+                sb.append("let v").append(i % 300).append(": int = ").append(i).append(" * w; // ").append(i).append('\n');
+        }
+        byte[] source = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        var sequential = TokenBuffer.lex(new Tokenizer(new StringIter(SourceInput.fromStream(new ByteArrayInputStream(source)))));
+        var parallel = TokenBuffer.lexParallel(new Tokenizer(new StringIter(SourceInput.fromStream(new ByteArrayInputStream(source)))), new ForkJoinPool(4));
+        assertEquals(sequential.size(), parallel.size());
+        for (int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.getToken(i), parallel.getToken(i));
+            assertEquals(sequential.getToken(i).getId(), parallel.getToken(i).getId());
+        }
+    }
+
+    @Test
+    public void pipelinedMatchesSequential() throws Exception {
+        var sb = new StringBuilder();
+        for (int i = 0; i < 40000; i++)
+            sb.append("let v").append(i % 300).append(": int = ").append(i).append(" * w; putstr(\"s").append(i).append("\");\n");
+        sb.append('$');
+        byte[] source = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        var sequential = TokenBuffer.lex(new Tokenizer(new StringIter(SourceInput.fromStream(new ByteArrayInputStream(source)))));
+        // 环比输入小得多，按顺序读时词法线程要反复等待
+        var pipelined = TokenBuffer.lexPipelined(new Tokenizer(new StringIter(SourceInput.fromStream(new ByteArrayInputStream(source)))));
+        for (int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.getType(i), pipelined.getType(i));
+            assertEquals(sequential.getToken(i), pipelined.getToken(i));
+        }
+        try {
+            pipelined.getType(sequential.size());
+            fail();
+        } catch (TokenizeError e) {
+            assertEquals(ErrorCode.InvalidInput, e.getErr());
+        }
+    }
+
+    @Test
+    public void keywordNearMissesAreIdentifiers() throws Exception {
+        // 长度不同的落进空槽，长度相同的在逐字符比较时被拒绝
+        String[] names = {"fnx", "le", "whilee", "int_", "f", "lex", "fm", "Fn", "wHile", "constant", "voic", "retur"};
+        var tokens = tokenize(SourceInput.fromStream(new ByteArrayInputStream(String.join(" ", names).getBytes(StandardCharsets.UTF_8))));
+        assertEquals(names.length + 1, tokens.size());
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(names[i], TokenType.IDENT, tokens.get(i).getTokenType());
+            assertEquals(names[i], tokens.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void operatorsAreMaximalMunch() throws Exception {
+        String source = "a->b - >c<=d< =e!=f==g=/h//x\n>=";
+        var tokens = tokenize(SourceInput.fromStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8))));
+        TokenType[] expected = {
+                TokenType.IDENT, TokenType.ARROW, TokenType.IDENT, TokenType.MINUS, TokenType.GT, TokenType.IDENT,
+                TokenType.LE, TokenType.IDENT, TokenType.LT, TokenType.ASSIGN, TokenType.IDENT, TokenType.NEQ,
+                TokenType.IDENT, TokenType.EQ, TokenType.IDENT, TokenType.ASSIGN, TokenType.DIV, TokenType.IDENT,
+                TokenType.GE, TokenType.EOF,
+        };
+        assertEquals(expected.length, tokens.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], tokens.get(i).getTokenType());
+        }
+        assertEquals("->", tokens.get(1).getValue());
+        assertEquals('<', tokens.get(8).getValue());
+
+        // 单独的 !，后面是别的字符或者输入结束都是错误
+        for (String bad : new String[]{"x = !y", "x ! =y", "x !"}) {
+            try {
+                tokenize(SourceInput.fromStream(new ByteArrayInputStream(bad.getBytes(StandardCharsets.UTF_8))));
+                fail(bad);
+            } catch (TokenizeError e) {
+                assertEquals(ErrorCode.InvalidInput, e.getErr());
+                assertEquals(bad, "Pos(row: 0, col: " + bad.indexOf('!') + ")", e.getPos().toString());
+            }
+        }
+    }
+
+    @Test
+    public void blankRunsCrossWordBoundaries() throws Exception {
+        // 空格、注释和字符串从每个对齐位置开始，长度跨过 0 到 2 个 8 字节的字
+        for (int align = 0; align < 8; align++) {
+            for (int length = 0; length <= 17; length++) {
+                String pad = " ".repeat(align);
+                String run = " ".repeat(length);
+                String body = "c".repeat(length);
+                String source = pad + "a" + run + "\tb//" + body + "\n\"" + body + "\" " + run + "\"" + body + "\\n\"";
+                var tokens = tokenize(SourceInput.fromStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8))));
+                String what = align + "/" + length;
+                assertEquals(what, 5, tokens.size());
+                assertEquals(what, align, tokens.get(0).getStartOffset());
+                assertEquals(what, align + length + 2, tokens.get(1).getStartOffset());
+                assertEquals(what, source.indexOf('"'), tokens.get(2).getStartOffset());
+                assertEquals(what, body, tokens.get(2).getValue());
+                assertEquals(what, body + "\n", tokens.get(3).getValue());
+                assertEquals(what, TokenType.EOF, tokens.get(4).getTokenType());
+            }
+        }
+    }
+
+    /**
+     * 每次最多读出 limit 个字节的输入流，让流式读入的窗口停在不是 8 的倍数的地方
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final int limit;
+
+        TrickleInputStream(byte[] bytes, int limit) {
+            super(bytes);
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, limit));
+        }
+    }
+
+    @Test
+    public void blankRunsCrossWindowBoundaries() throws Exception {
+        // 一段空格、一段注释和一个字符串分别跨过第 1、2、3 个 64 KiB 块的末尾
+        int chunk = 64 * 1024;
+        var sb = new StringBuilder();
+        sb.append("x".repeat(chunk - 50)).append(" ".repeat(100)).append('y');
+        sb.append(" ".repeat(2 * chunk - 30 - sb.length())).append("//").append("z".repeat(100)).append("\nw ");
+        sb.append(" ".repeat(3 * chunk - 40 - sb.length())).append('"').append("s".repeat(100)).append("\" ; \t \n");
+        byte[] source = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        var whole = tokenize(SourceInput.fromStream(new ByteArrayInputStream(source)));
+        assertEquals(6, whole.size());
+        assertEquals(chunk + 50, whole.get(1).getStartOffset());
+        assertEquals(TokenType.IDENT, whole.get(2).getTokenType());
+        assertEquals(3 * chunk - 40, whole.get(3).getStartOffset());
+        assertEquals(100, ((String) whole.get(3).getValue()).length());
+        assertEquals(TokenType.SEMICOLON, whole.get(4).getTokenType());
+
+        for (int limit : new int[]{chunk, 4093, 7, 1}) {
+            var streamed = tokenize(SourceInput.streaming(new TrickleInputStream(source, limit)));
+            assertEquals("limit " + limit, whole, streamed);
+        }
+    }
+
+    @Test
+    public void sourceIsDecodedAsUtf8() throws Exception {
+        String source = "let 变量1: int = 'é';\u3000putstr(\"héllo\\t世界 😀\"); café 变量1 x٣\n 'ü'";
+        var tokens = tokenize(SourceInput.fromStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8))));
+        assertEquals(TokenType.IDENT, tokens.get(1).getTokenType());
+        assertEquals("变量1", tokens.get(1).getValue());
+        assertEquals((int) 'é', tokens.get(5).getValue());
+        assertEquals("putstr", tokens.get(7).getValue());
+        assertEquals("héllo\t世界 😀", tokens.get(9).getValue());
+        assertEquals("café", tokens.get(12).getValue());
+        assertEquals(tokens.get(1).getId(), tokens.get(13).getId());
+        assertEquals("x٣", tokens.get(14).getValue());
+        assertEquals((int) 'ü', tokens.get(15).getValue());
+        assertEquals("Pos(row: 0, col: 20)", tokens.get(7).getStartPos().toString());
+
+        // 不合法的 UTF-8 编码不能作为标识符的一部分
+        byte[] malformed = {'a', 'b', (byte) 0xC3, '(', ')'};
+        try {
+            tokenize(SourceInput.fromStream(new ByteArrayInputStream(malformed)));
+            fail();
+        } catch (TokenizeError e) {
+            assertEquals(ErrorCode.InvalidInput, e.getErr());
+        }
+    }
+
+    @Test
+    public void onDemandMatchesSequential() throws Exception {
+        var sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            sb.append("let v").append(i % 300).append(": int = ").append(i).append(" * w; putstr(\"s").append(i).append("\");\n");
+        sb.append('$');
+        byte[] source = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        var sequential = TokenBuffer.lex(new Tokenizer(new StringIter(SourceInput.fromStream(new ByteArrayInputStream(source)))));
+        var onDemand = TokenBuffer.onDemand(new Tokenizer(new StringIter(SourceInput.streaming(new ByteArrayInputStream(source)))));
+        for (int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.getType(i), onDemand.getType(i));
+            assertEquals(sequential.getToken(i), onDemand.getToken(i));
+            // 只识别到语法分析读到的地方
+            assertTrue(onDemand.size() <= i + 256);
+        }
+        try {
+            onDemand.getType(sequential.size());
+            fail();
+        } catch (TokenizeError e) {
+            assertEquals(ErrorCode.InvalidInput, e.getErr());
+            try {
+                sequential.getType(sequential.size());
+                fail();
+            } catch (TokenizeError expected) {
+                assertEquals(expected.getPos().toString(), e.getPos().toString());
+            }
+        }
+    }
+
+    /**
+     * 边读边生成的源代码，整个输入不会同时出现在内存里
+     */
+    private static class GeneratedSource extends InputStream {
+        private final int lines;
+        private int line = 0;
+        private byte[] current = new byte[0];
+        private int pos = 0;
+
+        GeneratedSource(int lines) {
+            this.lines = lines;
+        }
+
+        static String line(int i) {
+            if (i % 100 == 0)
+                return "putstr(\"line " + i + "\\n\");    // " + "c".repeat(i % 300) + "\n";
+            return "    let v" + (i % 1000) + ": int = " + i + ";\n";
+        }
+
+        @Override
+        public int read() {
+            if (pos == current.length) {
+                if (line == lines)
+                    return -1;
+                current = line(line++).getBytes(StandardCharsets.UTF_8);
+                pos = 0;
+            }
+            return current[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = 0;
+            int c;
+            while (n < len && (c = read()) >= 0)
+                b[off + n++] = (byte) c;
+            return n == 0 && len > 0 ? -1 : n;
+        }
+    }
+
+    @Test
+    public void streamingKeepsMemoryBounded() throws Exception {
+        // 大约 25 MB 的输入
+        int lines = 1_000_000;
+        var input = SourceInput.streaming(new GeneratedSource(lines));
+        var tokens = TokenBuffer.onDemand(new Tokenizer(new StringIter(input)));
+        // 读第一个 token 时分配缓冲区
+        tokens.getType(0);
+        int windowCapacity = input.windowCapacity();
+        int tokenCapacity = tokens.capacity();
+
+        int i = 0;
+        for (int line = 0; line < lines; line++) {
+            // 和语法分析一样先读类型，再取值
+            if (line % 100 == 0) {
+                assertEquals(TokenType.IDENT, tokens.getType(i));
+                assertEquals(TokenType.STRING_LITEREAL, tokens.getType(i + 2));
+                assertEquals("line " + line + "\n", tokens.getString(i + 2));
+                i += 5;
+            } else {
+                assertEquals(TokenType.LET_KW, tokens.getType(i));
+                assertEquals(TokenType.Uint_LITERAL, tokens.getType(i + 5));
+                assertEquals(line, tokens.getLong(i + 5));
+                i += 7;
+            }
+            assertEquals(windowCapacity, input.windowCapacity());
+        }
+        assertEquals(TokenType.EOF, tokens.getType(i));
+        assertEquals(i + 1, tokens.size());
+        assertEquals(tokenCapacity, tokens.capacity());
+        // 缓冲区是两个 64 KiB 的块，token 的环远小于 token 数
+        assertEquals(2 * 64 * 1024, windowCapacity);
+        assertTrue(tokenCapacity < i / 1000);
+        assertEquals("Pos(row: 999999, col: 4)", tokens.getToken(i - 7).getStartPos().toString());
+    }
+
+    @Test
+    public void numericLiterals() throws Exception {
+        byte[] source = "9223372036854775807 0.1 123456789012345678901234.5 2.5e-300 7.0E22".getBytes(StandardCharsets.UTF_8);
+        var tokens = tokenize(SourceInput.fromStream(new ByteArrayInputStream(source)));
+        assertEquals(Long.MAX_VALUE, tokens.get(0).getValue());
+        assertEquals(0.1, tokens.get(1).getValue());
+        assertEquals(123456789012345678901234.5, tokens.get(2).getValue());
+        assertEquals(2.5e-300, tokens.get(3).getValue());
+        assertEquals(7.0E22, tokens.get(4).getValue());
+
+        try {
+            tokenize(SourceInput.fromStream(new ByteArrayInputStream("x 9223372036854775808".getBytes(StandardCharsets.UTF_8))));
+            fail("overflow not detected");
+        } catch (TokenizeError e) {
+            assertEquals(ErrorCode.IntegerOverflow, e.getErr());
+            assertEquals("Pos(row: 0, col: 2)", e.getPos().toString());
+        }
+    }
 }